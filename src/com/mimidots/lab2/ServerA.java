@@ -10,6 +10,10 @@ public class ServerA {
     //Last synchronized file list <filename,[size,last-modified]> - global so it can be reused between the runs
     TreeMap<String, Long[]> lastSyncedFileList = new TreeMap<>();
 
+    //Paces the synchronization cycles
+    SyncScheduler scheduler = new SyncScheduler();
+    int lastCycleChanges = 0; //files transferred or deleted by the last cycle
+
     static enum COMMAND {
         GETLISTING, //request for directory listing data
         FOLDERLISTING, //response with directory listing data
@@ -263,6 +267,7 @@ public class ServerA {
         //3 if directory A and B are empty, return
         if (inventoryA.size() == 0 && inventoryB.size() == 0) {
             System.out.println("Both directories in server A and B are empty. Skipping synchronization");
+            this.lastCycleChanges = 0;
             return inventoryA;
         }
 
@@ -321,6 +326,9 @@ public class ServerA {
             }
         }
 
+        this.lastCycleChanges = filesOnAToDelete.size() + filesOnBToDelete.size() + filesOnAToUpload.size() +
+                filesOnBToDownload.size();
+
         //5) Delete outdated files locally
         for (String filename : filesOnAToDelete.keySet()) {
             System.out.println("Deleting outdated file on server A " + filename);
@@ -421,14 +429,16 @@ public class ServerA {
             while (clientSocketB.isConnected()) {  //while we are connected to server B
 
                 //2) Synchronize the directory listings
+                long started = System.nanoTime();
                 inventory = server.synchronizeInventories(directoryServerA, serverBInputStream, serverBOutputStream);
+                long wait = server.scheduler.cycleCompleted(System.nanoTime() - started, server.lastCycleChanges);
 
                 //3) Send the data to the client
                 String clientData = server.serializeFiles(inventory);
                 clientOutputStream.writeBytes(clientData.length() + "\n" + clientData);
 
-                //sleep for 5 seconds
-                Thread.sleep(5000);
+                //sleep less while changes keep coming, more while nothing changes
+                Thread.sleep(wait);
                 System.out.println(); //separate each cycle log
             }
 
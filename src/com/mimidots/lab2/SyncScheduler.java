@@ -0,0 +1,34 @@
+package com.mimidots.lab2;
+
+/**
+ * Decides how long to wait before the next synchronization cycle.
+ * <p>
+ * While cycles find nothing to do the interval doubles, up to MAX_INTERVAL. A cycle that found changes halves it,
+ * down to MIN_INTERVAL, since more changes are likely to follow. The interval never drops below
+ * DURATION_FACTOR times the duration of the last cycle.
+ */
+public class SyncScheduler {
+    static final long MIN_INTERVAL = 250; //milliseconds
+    static final long MAX_INTERVAL = 15_000;
+    static final long INITIAL_INTERVAL = 1_000;
+    static final int DURATION_FACTOR = 2;
+
+    long interval = INITIAL_INTERVAL;
+
+    /**
+     * Adapts the interval to the last cycle
+     *
+     * @param durationNanos how long the cycle took
+     * @param changes       number of files the cycle transferred or deleted
+     * @return the interval until the next cycle, in milliseconds
+     */
+    public long cycleCompleted(long durationNanos, int changes) {
+        if (changes > 0) {
+            interval = Math.max(MIN_INTERVAL, interval / 2);
+        } else {
+            interval = Math.min(MAX_INTERVAL, interval * 2);
+        }
+        long floor = DURATION_FACTOR * durationNanos / 1_000_000;
+        return Math.max(interval, Math.min(floor, MAX_INTERVAL));
+    }
+}
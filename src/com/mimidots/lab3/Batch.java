@@ -0,0 +1,112 @@
+package com.mimidots.lab3;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Small items of one kind (files to upload, files to download, files to delete) collected during a synchronization
+ * cycle and sent to server B together, as one UPLOADBATCH, REQUESTBATCH or DELETEBATCH frame answered by one frame
+ * with a status per item, instead of one frame (and for downloads one round trip) per file.
+ * <p>
+ * A batch is sent once it holds limit() items, and limit() follows the item size seen so far: about TARGET_BYTES
+ * worth of items of the average size (a moving average), between MIN_ITEMS and MAX_ITEMS. Batches of small files
+ * carry a few dozen files, batches of filenames a few thousand, so every batch costs about the same to build, send
+ * and apply. A batch is sent as well once it holds MAX_BYTES, whatever the average.
+ * <p>
+ * Files are batch items as SIZE:TIMESTAMP:FILENAME\nDATA, with a size of -1 (and no data) for a file that could not
+ * be read.
+ */
+public class Batch {
+    //larger files travel in their own frames
+    static final long MAX_FILE_SIZE = 64 * 1024;
+    static final long TARGET_BYTES = 1024 * 1024;
+    static final long MAX_BYTES = 4 * TARGET_BYTES;
+    static final int MIN_ITEMS = 8;
+    static final int MAX_ITEMS = 4096;
+
+    final List<Object[]> items = new ArrayList<>();
+    long bytes = 0;
+    double averageItemBytes;
+
+    /**
+     * @param expectedItemBytes item size assumed until items are seen
+     */
+    public Batch(long expectedItemBytes) {
+        this.averageItemBytes = expectedItemBytes;
+    }
+
+    /**
+     * @param item      item, kept as it is until the batch is taken
+     * @param itemBytes bytes the item adds to the batch frame
+     * @return true if the batch is full and should be sent
+     */
+    public boolean add(Object[] item, long itemBytes) {
+        items.add(item);
+        bytes += itemBytes;
+        averageItemBytes += (itemBytes - averageItemBytes) / 16;
+        return items.size() >= limit() || bytes >= MAX_BYTES;
+    }
+
+    /**
+     * @return items per batch for the average item size
+     */
+    public int limit() {
+        return (int) Math.max(MIN_ITEMS, Math.min(MAX_ITEMS, TARGET_BYTES / Math.max(averageItemBytes, 1)));
+    }
+
+    public boolean isEmpty() {
+        return items.isEmpty();
+    }
+
+    /**
+     * @return the items collected so far, the batch starts over empty
+     */
+    public List<Object[]> take() {
+        List<Object[]> taken = new ArrayList<>(items);
+        items.clear();
+        bytes = 0;
+        return taken;
+    }
+
+    /**
+     * Appends a file item
+     *
+     * @param data contents, null for a file that could not be read
+     */
+    static void writeItem(ByteArrayOutputStream stream, String filename, long timestamp, byte[] data)
+            throws IOException {
+        stream.write(((data == null ? -1 : data.length) + ":" + timestamp + ":" + filename + "\n")
+                .getBytes(StandardCharsets.UTF_8));
+        if (data != null) {
+            stream.write(data);
+        }
+    }
+
+    /**
+     * @return [filename, timestamp, data] of every file item, data null for a file that could not be read
+     */
+    static List<Object[]> readItems(byte[] batch) {
+        List<Object[]> items = new ArrayList<>();
+        int position = 0;
+        while (position < batch.length) {
+            int end = position;
+            while (batch[end] != '\n') {
+                end++;
+            }
+            String[] fields = new String(batch, position, end - position, StandardCharsets.UTF_8).split(":", 3);
+            int size = Integer.parseInt(fields[0]);
+            position = end + 1;
+            byte[] data = null;
+            if (size >= 0) {
+                data = Arrays.copyOfRange(batch, position, position + size);
+                position += size;
+            }
+            items.add(new Object[]{fields[2], Long.parseLong(fields[1]), data});
+        }
+        return items;
+    }
+}
@@ -0,0 +1,299 @@
+package com.mimidots.lab3;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+/**
+ * Micro benchmarks of the protocol and inventory hot paths of server A.
+ * <p>
+ * Every benchmark runs for a warmup period, then for a measured period, and reports
+ * throughput (operations per second), latency percentiles per operation and bytes allocated per operation
+ * (by all threads, so the fork-join directory scan is included).
+ * Console output of the measured methods is discarded while they run.
+ * <p>
+ * Usage: Benchmarks [-filter name] [-entries 10,1000,100000] [-bodies 1024,1048576] [-seconds 2]
+ * <p>
+ * -filter runs only the benchmark of that exact name, e.g. -filter serializeData.
+ * Entries apply to serializeFiles, deserializeFiles, listDirectoryInventory, sort and getFilenameIndex,
+ * bodies (in bytes) to serializeData, deserializeData and fileTransfer (a file streamed over a loopback connection
+ * into another file, sending and receiving side). renewLease reads a RENEWLOCK frame and renews the lease it names,
+ * its size is the frame length. The run fails if a pooled buffer was not released.
+ * <p>
+ * The default sizes fit any heap. The target sizes, 10M entries and 1GB bodies, are run with
+ * java -Xmx5g com.mimidots.lab3.Benchmarks -entries 10000000 -bodies 1073741824 -seconds 10
+ * (listDirectoryInventory creates the 10M files in a temporary directory first, the run takes some 20 minutes;
+ * results in readme.txt).
+ */
+public class Benchmarks {
+    //latency of at most this many operations is recorded per benchmark, throughput counts all of them
+    static final int MAX_SAMPLES = 1 << 20;
+
+    static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    static final PrintStream console = System.out;
+
+    interface Operation {
+        void run() throws Exception;
+    }
+
+    static long allocatedBytes() {
+        long total = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            total += Math.max(bytes, 0);
+        }
+        return total;
+    }
+
+    static String duration(long nanos) {
+        if (nanos < 10_000) {
+            return nanos + "ns";
+        } else if (nanos < 10_000_000) {
+            return nanos / 1_000 + "us";
+        }
+        return nanos / 1_000_000 + "ms";
+    }
+
+    /**
+     * Runs one benchmark and prints a result line
+     *
+     * @param name      benchmark name
+     * @param parameter size the benchmark runs at
+     * @param seconds   measured duration, the warmup lasts half of it
+     * @param operation measured operation
+     */
+    static void measure(String name, long parameter, double seconds, Operation operation) throws Exception {
+        long warmupEnd = System.nanoTime() + (long) (seconds * 500_000_000L);
+        do {
+            operation.run();
+        } while (System.nanoTime() < warmupEnd);
+
+        long[] samples = new long[MAX_SAMPLES];
+        int sampleCount = 0;
+        long operations = 0;
+
+        System.gc();
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        long end = start + (long) (seconds * 1_000_000_000L);
+        long now = start;
+        do {
+            operation.run();
+            long finished = System.nanoTime();
+            if (sampleCount < MAX_SAMPLES) {
+                samples[sampleCount++] = finished - now;
+            }
+            now = finished;
+            operations++;
+        } while (now < end);
+        long elapsed = now - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+
+        Arrays.sort(samples, 0, sampleCount);
+        console.printf("%-24s %12d %14.1f %10s %10s %10s %10s %14d%n", name, parameter,
+                operations * 1e9 / elapsed,
+                duration(samples[sampleCount / 2]),
+                duration(samples[(int) (sampleCount * 0.99)]),
+                duration(samples[(int) (sampleCount * 0.999)]),
+                duration(samples[sampleCount - 1]),
+                allocated / operations);
+    }
+
+    /**
+     * Generated inventory with names spread over nested directories
+     */
+    static TreeMap<String, Long[]> inventory(int entries) {
+        TreeMap<String, Long[]> files = new TreeMap<>();
+        for (int i = 0; i < entries; i++) {
+            files.put("dir-" + (i % 100) + "/Report-" + i + ".txt",
+                    new Long[]{1024L + i % 5000, 1_600_000_000_000L + i * 1000L, 0L});
+        }
+        return files;
+    }
+
+    static long[] parseSizes(String list) {
+        return Arrays.stream(list.split(",")).mapToLong(Long::parseLong).toArray();
+    }
+
+    /**
+     * Sends a file frame over a loopback connection and waits until a receiving thread has written it to a file
+     */
+    static void measureTransfer(long size, double seconds, byte[] body) throws Exception {
+        Path directory = Files.createTempDirectory("benchmark");
+        String source = directory.resolve("source.bin").toString();
+        String target = directory + "/";
+        Files.write(Paths.get(source), body);
+
+        try (ServerSocketChannel listener = ServerSocketChannel.open()
+                .bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+             SocketChannel sender = SocketChannel.open(listener.getLocalAddress());
+             SocketChannel receiver = listener.accept()) {
+            FrameWriter writer = new FrameWriter(sender, new Metrics(), "benchmark");
+            DataInputStream in = new DataInputStream(receiver.socket().getInputStream());
+            AtomicLong received = new AtomicLong();
+            Thread caller = Thread.currentThread();
+
+            Thread receiving = new Thread(() -> {
+                try {
+                    while (true) {
+                        //FILEUPLOAD:SIZE:FILENAME:TIMESTAMP
+                        String[] header = Client.readLine(in).split(":");
+                        FileTransfer.receive(receiver, Long.parseLong(header[1]), target, "target.bin",
+                                Long.parseLong(header[3]), 0);
+                        received.incrementAndGet();
+                        LockSupport.unpark(caller);
+                    }
+                } catch (IOException e) {
+                    //connection closed at the end of the benchmark
+                }
+            });
+            receiving.setDaemon(true);
+            receiving.start();
+
+            long[] sent = {0};
+            measure("fileTransfer", size, seconds, () -> {
+                writer.writeFileFrame(ServerA.COMMAND.FILEUPLOAD.name(), source, "file.bin", 1_600_000_000_000L);
+                sent[0]++;
+                while (received.get() < sent[0]) {
+                    LockSupport.park();
+                }
+            });
+        }
+        deleteDirectory(directory);
+    }
+
+    static void deleteDirectory(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    /**
+     * @param filter benchmark name given with -filter, empty to run every benchmark
+     * @return true if the benchmark is to run
+     */
+    static boolean selected(String filter, String name) {
+        return filter.isEmpty() || name.equals(filter);
+    }
+
+    public static void main(String[] args) throws Exception {
+        String filter = "";
+        long[] entrySizes = {10, 1000, 100000};
+        long[] bodySizes = {1024, 1024 * 1024};
+        double seconds = 2;
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-filter" -> filter = args[i + 1];
+                case "-entries" -> entrySizes = parseSizes(args[i + 1]);
+                case "-bodies" -> bodySizes = parseSizes(args[i + 1]);
+                case "-seconds" -> seconds = Double.parseDouble(args[i + 1]);
+                default -> {
+                    System.err.println("Unknown option " + args[i]);
+                    return;
+                }
+            }
+        }
+
+        ServerA server = new ServerA();
+        //the measured methods log every call, keep the results readable
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        console.printf("%-24s %12s %14s %10s %10s %10s %10s %14s%n",
+                "benchmark", "size", "ops/s", "p50", "p99", "p99.9", "max", "alloc B/op");
+
+        for (long size : bodySizes) {
+            byte[] body = new byte[(int) size];
+            Arrays.fill(body, (byte) 'x');
+
+            if (selected(filter, "serializeData")) {
+                measure("serializeData", size, seconds,
+                        () -> server.serializeData(ServerA.COMMAND.FILEUPLOAD.name(), body, "dir/file.txt", 1_600_000_000_000L));
+            }
+            if (selected(filter, "deserializeData")) {
+                byte[] frame = server.serializeData(ServerA.COMMAND.FILEUPLOAD.name(), body, "dir/file.txt", 1_600_000_000_000L);
+                measure("deserializeData", size, seconds,
+                        () -> server.deserializeData(new DataInputStream(new ByteArrayInputStream(frame))));
+            }
+            if (selected(filter, "fileTransfer")) {
+                measureTransfer(size, seconds, body);
+            }
+        }
+
+        if (selected(filter, "renewLease")) {
+            //a RENEWLOCK heartbeat as the client handler takes it: header parsed in place, then the lease extended
+            FileLease lease = server.lockedFiles.tryLock("dir/file.txt", "benchmark", 60_000);
+            byte[] frame = server.serializeData(ServerA.COMMAND.RENEWLOCK.name(), null, lease.filename, lease.token);
+            ByteArrayInputStream bytes = new ByteArrayInputStream(frame);
+            FrameReader frames = new FrameReader(new DataInputStream(bytes));
+            measure("renewLease", frame.length, seconds, () -> {
+                bytes.reset();
+                frames.next();
+                frames.skipData();
+                if (!server.renewLease(frames.filename(), frames.timestamp())) {
+                    throw new IllegalStateException("Lease of " + lease.filename + " lost");
+                }
+            });
+        }
+
+        for (long size : entrySizes) {
+            TreeMap<String, Long[]> files = inventory((int) size);
+
+            if (selected(filter, "serializeFiles")) {
+                measure("serializeFiles", size, seconds, () -> server.serializeFiles(files));
+            }
+            if (selected(filter, "deserializeFiles")) {
+                byte[] listing = server.serializeFiles(files);
+                measure("deserializeFiles", size, seconds, () -> server.deserializeFiles(listing));
+            }
+            if (selected(filter, "sort")) {
+                measure("sort", size, seconds, () -> server.sort(files));
+            }
+            if (selected(filter, "getFilenameIndex")) {
+                //indexes are resolved against the published listing
+                server.publishListing(files);
+                String middle = files.keySet().stream().skip(files.size() / 2).findFirst().orElse("");
+                measure("getFilenameIndex", size, seconds, () -> server.getFilenameIndex(middle));
+                server.publishListing(new TreeMap<>());
+            }
+            if (selected(filter, "listDirectoryInventory")) {
+                Path directory = Files.createTempDirectory("benchmark");
+                for (Map.Entry<String, Long[]> file : files.entrySet()) {
+                    Path path = directory.resolve(file.getKey());
+                    Files.createDirectories(path.getParent());
+                    Files.createFile(path);
+                }
+                String path = directory + "/";
+                measure("listDirectoryInventory", size, seconds, () -> server.listDirectoryInventory(path));
+                deleteDirectory(directory);
+            }
+        }
+
+        //every pooled buffer taken by a transfer must have been given back
+        if (BufferPool.outstanding() != 0) {
+            console.println(BufferPool.outstanding() + " pooled buffers were not released"
+                    + (BufferPool.TRACK ? "" : ", run with -Dlab3.buffers.track=true to see where they were acquired"));
+            BufferPool.reportLeaks();
+            Log.flush();
+            System.exit(1);
+        }
+    }
+}
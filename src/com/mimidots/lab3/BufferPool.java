@@ -0,0 +1,108 @@
+package com.mimidots.lab3;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct (off-heap) buffers for file transfers.
+ * <p>
+ * Buffers come in power of two size classes from 4KB to CHUNK_SIZE; a request gets a buffer of the smallest class
+ * that fits it. Files larger than CHUNK_SIZE are streamed through one buffer chunk by chunk, so a transfer never
+ * needs a buffer (or a heap array) the size of the file. Released buffers are kept for reuse, up to
+ * MAX_POOLED buffers per class, in array-backed queues, so acquiring and releasing does not allocate either.
+ * <p>
+ * Every acquire must be matched by exactly one release, in a finally block. outstanding() counts the buffers
+ * acquired and not released yet; with -Dlab3.buffers.track=true the pool also records where each outstanding
+ * buffer was acquired and reportLeaks() logs it.
+ */
+public class BufferPool {
+    static final int MIN_CLASS = 12; //4KB
+    static final int MAX_CLASS = 18; //256KB
+    public static final int CHUNK_SIZE = 1 << MAX_CLASS;
+    static final int MAX_POOLED = 64; //per class
+
+    static final boolean TRACK = Boolean.getBoolean("lab3.buffers.track");
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static final ArrayBlockingQueue<ByteBuffer>[] free = new ArrayBlockingQueue[MAX_CLASS - MIN_CLASS + 1];
+
+    static final AtomicLong outstanding = new AtomicLong();
+    static final AtomicLong allocatedBytes = new AtomicLong(); //direct memory held by the pool, in use or free
+
+    //acquisition site of every outstanding buffer, only when tracking
+    static final Map<ByteBuffer, Throwable> acquiredAt = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    static {
+        for (int i = 0; i < free.length; i++) {
+            free[i] = new ArrayBlockingQueue<>(MAX_POOLED);
+        }
+    }
+
+    static int classOf(int size) {
+        int bits = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+        return Math.max(bits, MIN_CLASS) - MIN_CLASS;
+    }
+
+    /**
+     * @param size bytes needed, at most CHUNK_SIZE
+     * @return a cleared buffer with its limit set to size
+     */
+    public static ByteBuffer acquire(int size) {
+        if (size > CHUNK_SIZE) {
+            throw new IllegalArgumentException("Buffers are at most " + CHUNK_SIZE + " bytes, stream larger sizes in chunks");
+        }
+        int sizeClass = classOf(size);
+        ByteBuffer buffer = free[sizeClass].poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(1 << (sizeClass + MIN_CLASS));
+            allocatedBytes.addAndGet(buffer.capacity());
+        }
+        buffer.clear().limit(size);
+        outstanding.incrementAndGet();
+        if (TRACK) {
+            acquiredAt.put(buffer, new Throwable("Buffer of " + buffer.capacity() + " bytes acquired here"));
+        }
+        return buffer;
+    }
+
+    public static void release(ByteBuffer buffer) {
+        if (TRACK && acquiredAt.remove(buffer) == null) {
+            Log.error("Buffer released twice or not from the pool", new Throwable());
+            return;
+        }
+        outstanding.decrementAndGet();
+        if (!free[classOf(buffer.capacity())].offer(buffer)) {
+            //enough of this class pooled, the buffer is left to the garbage collector
+            allocatedBytes.addAndGet(-buffer.capacity());
+        }
+    }
+
+    /**
+     * @return buffers acquired and not released yet
+     */
+    public static long outstanding() {
+        return outstanding.get();
+    }
+
+    public static long allocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    /**
+     * Logs where each outstanding buffer was acquired (with -Dlab3.buffers.track=true)
+     *
+     * @return number of outstanding buffers
+     */
+    public static long reportLeaks() {
+        synchronized (acquiredAt) {
+            for (Throwable site : acquiredAt.values()) {
+                Log.error("Pooled buffer not released", site);
+            }
+        }
+        return outstanding.get();
+    }
+}
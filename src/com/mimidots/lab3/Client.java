@@ -2,6 +2,7 @@ package com.mimidots.lab3;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.TreeMap;
@@ -10,9 +11,14 @@ public class Client {
 
     static enum COMMAND {
         LOCKFILE,
-        UNLOCKFILE
+        UNLOCKFILE,
+        RENEWLOCK
     }
 
+    //lease of the file this client locked, renewed by the heartbeat thread until the server reports it lost
+    volatile String leasedFile = null;
+    volatile long leaseToken = 0;
+
     /**
      * @param command   Command being sent
      * @param data      The content of the data in bytes (array byte)
@@ -52,25 +58,47 @@ public class Client {
         return stream.toByteArray();
     }
 
-    TreeMap<String, Long[]> deserializeFiles(String data) {
-        String fileMetaDelimiter = ":";
-        TreeMap<String, Long[]> fileMap = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
-
-        //if data is null, return empty treemap
-        if (data.equals("")) {
-            return fileMap;
+    /**
+     * Reads a line sent by the server: the size of a listing or a LEASE answer
+     */
+    static String readLine(DataInputStream stream) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        byte b;
+        while ((b = stream.readByte()) != '\n') {
+            line.write(b);
         }
+        return line.toString(StandardCharsets.UTF_8);
+    }
 
-        //split by end of line to get each file representation
-        String[] fileMeta = data.split("\n");
+    /**
+     * Keeps the lease of the locked file by sending RENEWLOCK three times per time to live
+     *
+     * @param ttl time to live of the lease in milliseconds
+     */
+    void heartbeat(DataOutputStream outputStream, String filename, long token, long ttl) {
+        try {
+            while (filename.equals(this.leasedFile) && token == this.leaseToken) {
+                Thread.sleep(Math.max(ttl / 3, 100));
+                this.send(outputStream, this.serializeData(COMMAND.RENEWLOCK.name(), null, filename, token));
+            }
+        } catch (IOException | InterruptedException e) {
+            System.err.println("Lease renewal stopped: " + e.getMessage());
+        }
+    }
 
-        //for each file meta, expand it
-        for (String meta : fileMeta) {
-            String[] f = meta.split(fileMetaDelimiter);
-            //the key represent the filename and, long contains:  file-length, file-timestamp,is-file-locked-flag
-            fileMap.put(f[0], new Long[]{Long.valueOf(f[1]), Long.valueOf(f[2]), Long.valueOf(f[3])});
+    /**
+     * Writes a frame to server A. The heartbeat thread writes to the same stream, every write holds its lock so
+     * frames never interleave
+     */
+    void send(DataOutputStream outputStream, byte[] frame) throws IOException {
+        synchronized (outputStream) {
+            outputStream.write(frame);
         }
-        return fileMap;
+    }
+
+    TreeMap<String, Long[]> deserializeFiles(byte[] data) throws IOException {
+        //the key represent the filename and, long contains:  file-length, file-timestamp,is-file-locked-flag
+        return ListingCodec.decode(data, new TreeMap<>(String.CASE_INSENSITIVE_ORDER));
     }
 
     void print(TreeMap<String, Long[]> files) {
@@ -107,9 +135,10 @@ public class Client {
         try {
             String command = "";
             String index = "";
+            long unlockToken = 0;
 
-            //if this was run with command line arguments,
-            if (args.length == 2 && (args[0].equals("-lock") || args[0].equals("-unlock"))) {
+            //if this was run with command line arguments: -lock <index> or -unlock <index> <fencing token>
+            if ((args.length == 2 && args[0].equals("-lock")) || (args.length == 3 && args[0].equals("-unlock"))) {
                 //extract action
                 String action = args[0].replace("-", "");
                 command = COMMAND.LOCKFILE.name();
@@ -129,7 +158,24 @@ public class Client {
                     System.exit(1);
                 }
 
+                //the token printed by the client that locked the file: server A only accepts an unlock without the
+                //token from the connection holding the lease
+                if (args.length == 3) {
+                    try {
+                        unlockToken = Long.parseLong(args[2]);
+                        if (unlockToken <= 0) {
+                            throw new NumberFormatException();
+                        }
+                    } catch (NumberFormatException e) {
+                        System.err.println("Invalid token argument. Token should be the fencing token printed by -lock");
+                        System.exit(1);
+                    }
+                }
+
                // System.exit(0);
+            } else if (args.length > 0 && args[0].equals("-unlock")) {
+                System.err.println("Usage: -unlock <index> <token>, with the fencing token printed by -lock");
+                System.exit(1);
             }
 
             //establish a connection to the server
@@ -144,12 +190,13 @@ public class Client {
             //Input stream to send data stream received to the server
             outputStream = new DataOutputStream(socket.getOutputStream());
 
-            //if a command to lock file was issued, send it to the server immediately
-            if (!command.equals("") && !index.equals("")) {
+            //if a command to lock file was issued, send it to the server immediately. An unlock names the leased file
+            //and its fencing token, it waits for the listing to find which file the index is
+            boolean unlockPending = command.equals(COMMAND.UNLOCKFILE.name());
+            if (command.equals(COMMAND.LOCKFILE.name())) {
                 System.out.println("Sending your request to " + command + " file to server A");
 
-                //send the command
-                outputStream.write(client.serializeData(command, index.getBytes(), "", 0L));
+                client.send(outputStream, client.serializeData(command, index.getBytes(), "", 0L));
 
                 System.out.println("Request sent to the server A");
 
@@ -162,17 +209,38 @@ public class Client {
                     continue;
                 }
 
-                char c;
-                StringBuilder sizeBuilder = new StringBuilder();
-                while ((c = (char) inputStream.read()) != '\n') {
-                    sizeBuilder.append(c);
-                }
-                if (!sizeBuilder.isEmpty()) {
+                String line = readLine(inputStream);
+                if (line.startsWith("LEASE:")) {
+                    //LEASE:token:ttl:filename, token 0 - lock refused or lease lost
+                    String[] lease = line.split(":", 4);
+                    long token = Long.parseLong(lease[1]);
+                    if (token == 0) {
+                        System.out.println("No lease on " + lease[3] + ", the file is not locked by this client");
+                        client.leasedFile = null;
+                        client.leaseToken = 0;
+                    } else {
+                        System.out.println("Locked " + lease[3] + " with fencing token " + token
+                                + ", renewing the lease while connected. Release it from another client with -unlock "
+                                + index + " " + token);
+                        client.leasedFile = lease[3];
+                        client.leaseToken = token;
+                        final DataOutputStream heartbeatStream = outputStream;
+                        final long ttl = Long.parseLong(lease[2]);
+                        Thread heartbeatThread = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                client.heartbeat(heartbeatStream, lease[3], token, ttl);
+                            }
+                        }, "lease-heartbeat");
+                        heartbeatThread.setDaemon(true);
+                        heartbeatThread.start();
+                    }
+                } else if (!line.isEmpty()) {
                     System.out.println("Received data from server A");
 
                     //read all the data
-                    byte[] data = inputStream.readNBytes(Integer.parseInt(sizeBuilder.toString()));
-                    TreeMap<String, Long[]> files = client.deserializeFiles(new String((byte[]) data));
+                    byte[] data = inputStream.readNBytes(Integer.parseInt(line));
+                    TreeMap<String, Long[]> files = client.deserializeFiles(data);
 
                     if (files.size() == 0) {
                         System.out.println("Directories empty. Skipping..");
@@ -182,6 +250,21 @@ public class Client {
                         client.print(files);
                         System.out.println();
                     }
+
+                    if (unlockPending) {
+                        unlockPending = false;
+                        int fileIndex = Integer.parseInt(index);
+                        String filename = fileIndex < files.size()
+                                ? files.keySet().toArray(new String[0])[fileIndex] : "";
+                        if (filename.isEmpty()) {
+                            System.err.println("Invalid index argument. Index should be a valid list index");
+                        } else {
+                            System.out.println("Sending your request to " + command + " " + filename + " to server A");
+                            client.send(outputStream, client.serializeData(command, index.getBytes(), filename,
+                                    unlockToken));
+                            System.out.println("Request sent to the server A");
+                        }
+                    }
                 }
 
             }
@@ -0,0 +1,118 @@
+package com.mimidots.lab3;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * Frames waiting to be sent to a client, written by a thread of their own so the client handler never blocks on a
+ * client that reads slowly: it keeps reading lock commands and lease renewals, and the synchronization thread only
+ * ever publishes a listing.
+ * <p>
+ * Replies (LEASE answers) are queued in order, at most MAX_REPLIES. Listings are not queued: only the newest listing
+ * not written yet is kept, so a client that falls behind skips the listings published meanwhile and gets the latest
+ * snapshot once it reads again. Replies go out before the listing.
+ * <p>
+ * A client is stalled when a write has made no progress for STALL_NANOS or its replies overflow; the handler then
+ * disconnects it.
+ */
+public class ClientOutbox {
+    static final int MAX_REPLIES = 64;
+    static final long STALL_NANOS = 30_000_000_000L;
+
+    final FrameWriter writer;
+    final Metrics.Counter listingsCollapsed;
+
+    final ArrayDeque<byte[]> replies = new ArrayDeque<>();
+    byte[] listing = null; //newest listing not written yet
+    long writeStarted = 0; //System.nanoTime of the write in progress, 0 while idle
+    boolean overflowed = false;
+    boolean closed = false;
+
+    public ClientOutbox(FrameWriter writer, Metrics metrics) {
+        this.writer = writer;
+        this.listingsCollapsed = metrics.counter("listings_collapsed");
+    }
+
+    /**
+     * Queues a reply
+     *
+     * @return false if the client already has MAX_REPLIES replies not written, it is stalled from now on
+     */
+    public synchronized boolean reply(byte[] frame) {
+        if (replies.size() >= MAX_REPLIES) {
+            overflowed = true;
+            return false;
+        }
+        replies.add(frame);
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Queues a listing, in place of the listing not written yet if there is one
+     */
+    public synchronized void listing(byte[] data) {
+        if (listing != null) {
+            listingsCollapsed.increment();
+        }
+        listing = data;
+        notifyAll();
+    }
+
+    /**
+     * @return true if the client should be disconnected: its replies overflowed or a write is blocked for too long
+     */
+    public synchronized boolean isStalled(long now) {
+        return overflowed || (writeStarted != 0 && now - writeStarted > STALL_NANOS);
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Stops the writer thread once the frame in progress is written (or fails, when the socket is closed)
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Writes the queued frames until closed. Run by the writer thread of the client
+     */
+    public void drain() throws IOException, InterruptedException {
+        try {
+            while (true) {
+                byte[] frame;
+                boolean isListing;
+                synchronized (this) {
+                    while (!closed && replies.isEmpty() && listing == null) {
+                        wait();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    isListing = replies.isEmpty();
+                    frame = isListing ? listing : replies.poll();
+                    if (isListing) {
+                        listing = null;
+                    }
+                    writeStarted = System.nanoTime();
+                }
+
+                //a listing is preceded by its size, replies are complete lines
+                if (isListing) {
+                    writer.writeSized(frame);
+                } else {
+                    writer.write(frame);
+                }
+                synchronized (this) {
+                    writeStarted = 0;
+                }
+            }
+        } finally {
+            close();
+        }
+    }
+}
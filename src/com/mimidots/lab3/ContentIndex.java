@@ -0,0 +1,136 @@
+package com.mimidots.lab3;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Content hashes of the files of a server directory, so a file whose contents the other server already has (a
+ * renamed or copied file) is materialized from a local copy instead of being transferred.
+ * <p>
+ * Files are hashed (SHA-256) on demand only: when a file of at least MIN_SIZE is about to be transferred and a file
+ * of the same size is synchronized already, as renames and copies keep the size. Hashes are cached by filename with
+ * the size and timestamp they were computed at, and the index keeps hash -> filenames for the files hashed so far.
+ * An entry is only trusted while the file still has that size and timestamp.
+ * <p>
+ * A materialized file is copied (or, with -hardlinks, linked when the source already has the wanted timestamp, as
+ * a link shares it) into the staging directory and moved over the file, like a completed transfer. Transfers
+ * replace a linked file rather than write into it; a file edited in place in the directory changes all its names.
+ */
+public class ContentIndex {
+    //smaller files are always transferred, the hash round trip would cost about as much
+    static final long MIN_SIZE = 1024 * 1024;
+    //same size files whose hash is compared per transfer
+    static final int MAX_CANDIDATES = 4;
+
+    final String root;
+    boolean hardLinks = false;
+
+    //filename -> [size, timestamp, hash] as of hashing
+    final ConcurrentHashMap<String, Object[]> hashes = new ConcurrentHashMap<>();
+    //hash -> filenames seen with that content
+    final ConcurrentHashMap<String, Set<String>> filenames = new ConcurrentHashMap<>();
+
+    public ContentIndex(String root) {
+        this.root = root;
+    }
+
+    /**
+     * @return hash of the current contents of a file, cached while its size and timestamp do not change
+     */
+    public String hashOf(String filename) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(Paths.get(root + filename), BasicFileAttributes.class);
+        long size = attributes.size();
+        long timestamp = attributes.lastModifiedTime().toMillis();
+        Object[] cached = hashes.get(filename);
+        if (cached != null && (Long) cached[0] == size && (Long) cached[1] == timestamp) {
+            return (String) cached[2];
+        }
+
+        String hash = FileTransfer.prefixHash(root + filename, size);
+        hashes.put(filename, new Object[]{size, timestamp, hash});
+        filenames.computeIfAbsent(hash, key -> ConcurrentHashMap.newKeySet()).add(filename);
+        return hash;
+    }
+
+    /**
+     * @return hash of a file, null if it cannot be read (e.g. deleted)
+     */
+    String hashOrNull(String filename) {
+        try {
+            return hashOf(filename);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Looks for a file of the directory with the given contents: among the files indexed with that hash first, then
+     * among the candidates
+     *
+     * @param candidates files that may have the contents, e.g. of the same size
+     * @return filename relative to the directory, null if none has the contents
+     */
+    public String find(String hash, Iterable<String> candidates) {
+        Set<String> indexed = filenames.get(hash);
+        if (indexed != null) {
+            for (String filename : indexed) {
+                if (hash.equals(hashOrNull(filename))) {
+                    return filename;
+                }
+                indexed.remove(filename); //changed or deleted since
+            }
+        }
+        for (String filename : candidates) {
+            if (hash.equals(hashOrNull(filename))) {
+                return filename;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the file has other names (hard links)
+     */
+    static boolean isLinked(Path path) {
+        try {
+            return (Integer) Files.getAttribute(path, "unix:nlink") > 1;
+        } catch (IOException | UnsupportedOperationException e) { //missing, or no link counts on this platform
+            return false;
+        }
+    }
+
+    /**
+     * Creates (or replaces) a file with the contents of another file of the directory
+     *
+     * @param source    file with the contents
+     * @param filename  file to create
+     * @param timestamp last-modified time to set
+     */
+    public void materialize(String source, String filename, long timestamp) throws IOException {
+        Path staging = FileTransfer.stagingPath(root, filename);
+        DirectoryWatcher.expectWrite(root + filename);
+        DirectoryWatcher.expectWrite(staging.toString());
+        Files.createDirectories(staging.getParent());
+        Files.deleteIfExists(staging);
+        if (hardLinks && new File(root + source).lastModified() == timestamp) {
+            Files.createLink(staging, Paths.get(root + source));
+        } else {
+            Files.copy(Paths.get(root + source), staging, StandardCopyOption.REPLACE_EXISTING);
+            staging.toFile().setLastModified(timestamp);
+        }
+
+        File file = new File(root + filename);
+        Files.createDirectories(file.toPath().getParent());
+        Files.move(staging, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        //an interrupted transfer of the file is no longer needed
+        FileTransfer.discard(root, filename);
+        DirectoryWatcher.expectWrite(root + filename);
+    }
+}
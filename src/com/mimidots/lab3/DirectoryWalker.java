@@ -0,0 +1,316 @@
+package com.mimidots.lab3;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Recursive directory inventory built on fork-join.
+ * <p>
+ * Every subdirectory is scanned by its own task, so sibling subtrees are scanned concurrently. Each task sorts its
+ * own files and subdirectories, nothing is shared between tasks. The sorted results are merged in a single in-order
+ * pass once the walk is done and the inventory is built from them in linear time.
+ * Files are keyed by their path relative to the root, with '/' as separator, e.g. "docs/2021/report.pdf".
+ * <p>
+ * Entries are read with a directory stream and a single readAttributes call each (size, timestamp and type in one
+ * stat) instead of separate File.length/lastModified/isDirectory calls. Large directories have their attributes
+ * read by several tasks, each filling its own range of arrays sized to the directory entry count.
+ * <p>
+ * Symbolic links are not followed and are left out, like sockets, devices and pipes: a link to an ancestor would
+ * make the walk endless and a link leading out of the root would serve files from outside of it.
+ */
+public class DirectoryWalker extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    //directories with more entries than this have their attributes read in parallel
+    static final int SPLIT_THRESHOLD = 2048;
+
+    final Path directory;
+    final String relativePath; //path of the directory relative to the root, empty or ending with '/'
+    //files of this directory and walkers of its subdirectories, each sorted by path
+    final List<Map.Entry<String, Long[]>> files = new ArrayList<>();
+    final List<DirectoryWalker> subdirectories = new ArrayList<>();
+    int fileCount; //files of the whole subtree, once walked
+
+    DirectoryWalker(Path directory, String relativePath) {
+        this.directory = directory;
+        this.relativePath = relativePath;
+    }
+
+    /**
+     * Reads the attributes of a range of directory entries into the shared, pre-sized arrays.
+     * Ranges larger than the split threshold are halved and read concurrently.
+     */
+    static class AttributeReader extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final List<Path> entries;
+        final int from;
+        final int to;
+        final long[] sizes;
+        final long[] timestamps;
+        final byte[] types; //0 - unreadable or skipped, 1 - file, 2 - directory
+
+        AttributeReader(List<Path> entries, int from, int to, long[] sizes, long[] timestamps, byte[] types) {
+            this.entries = entries;
+            this.from = from;
+            this.to = to;
+            this.sizes = sizes;
+            this.timestamps = timestamps;
+            this.types = types;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > SPLIT_THRESHOLD) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new AttributeReader(entries, from, middle, sizes, timestamps, types),
+                        new AttributeReader(entries, middle, to, sizes, timestamps, types));
+                return;
+            }
+
+            for (int i = from; i < to; i++) {
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(entries.get(i), BasicFileAttributes.class,
+                            LinkOption.NOFOLLOW_LINKS);
+                    sizes[i] = attributes.size();
+                    timestamps[i] = attributes.lastModifiedTime().toMillis();
+                    if (attributes.isDirectory()) {
+                        types[i] = 2;
+                    } else if (attributes.isRegularFile()) {
+                        types[i] = 1;
+                    } else {
+                        types[i] = 0; //symbolic link or special file, leave it out
+                    }
+                } catch (IOException e) {
+                    //removed while scanning, leave it out
+                    types[i] = 0;
+                }
+            }
+        }
+    }
+
+    @Override
+    protected void compute() {
+        List<Path> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path entry : stream) {
+                entries.add(entry);
+            }
+        } catch (IOException e) { //directory removed while walking or not readable
+            return;
+        }
+
+        int count = entries.size();
+        long[] sizes = new long[count];
+        long[] timestamps = new long[count];
+        byte[] types = new byte[count];
+        new AttributeReader(entries, 0, count, sizes, timestamps, types).invoke();
+
+        for (int i = 0; i < count; i++) {
+            String name = entries.get(i).getFileName().toString();
+            if (types[i] == 2) {
+                if (relativePath.isEmpty() && name.equals(FileTransfer.STAGING_DIRECTORY)) {
+                    continue; //partially received files are not part of the directory yet
+                }
+                subdirectories.add(new DirectoryWalker(entries.get(i), relativePath + name + "/"));
+            } else if (types[i] == 1) {
+                //name as the key, [file-size,file-timestamp,file-lock-flag]
+                files.add(new AbstractMap.SimpleImmutableEntry<>(relativePath + name,
+                        new Long[]{sizes[i], timestamps[i], 0L}));
+            }
+        }
+        files.sort(Map.Entry.comparingByKey());
+        subdirectories.sort(Comparator.comparing(subdirectory -> subdirectory.relativePath));
+        invokeAll(subdirectories);
+
+        fileCount = files.size();
+        for (DirectoryWalker subdirectory : subdirectories) {
+            fileCount += subdirectory.fileCount;
+        }
+    }
+
+    /**
+     * Appends the files of the subtree in the order of their paths. The files of a subdirectory "docs/" sort
+     * together, right where "docs/" sorts among the files of this directory ("docs-old" before, "docs0" after)
+     */
+    void collect(List<Map.Entry<String, Long[]>> sorted) {
+        int next = 0;
+        for (Map.Entry<String, Long[]> file : files) {
+            while (next < subdirectories.size() && subdirectories.get(next).relativePath.compareTo(file.getKey()) < 0) {
+                subdirectories.get(next++).collect(sorted);
+            }
+            sorted.add(file);
+        }
+        while (next < subdirectories.size()) {
+            subdirectories.get(next++).collect(sorted);
+        }
+    }
+
+    /**
+     * Files in the order of their paths, as a sorted map a TreeMap is built from without comparing keys.
+     * Only iterated once, so the views of a sorted map are not supported.
+     */
+    static class SortedFiles extends AbstractMap<String, Long[]> implements SortedMap<String, Long[]> {
+        final List<Map.Entry<String, Long[]>> files;
+
+        SortedFiles(List<Map.Entry<String, Long[]>> files) {
+            this.files = files;
+        }
+
+        @Override
+        public Set<Map.Entry<String, Long[]>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Map.Entry<String, Long[]>> iterator() {
+                    return files.iterator();
+                }
+
+                @Override
+                public int size() {
+                    return files.size();
+                }
+            };
+        }
+
+        @Override
+        public Comparator<? super String> comparator() {
+            return null; //natural order
+        }
+
+        @Override
+        public String firstKey() {
+            return files.get(0).getKey();
+        }
+
+        @Override
+        public String lastKey() {
+            return files.get(files.size() - 1).getKey();
+        }
+
+        @Override
+        public SortedMap<String, Long[]> subMap(String fromKey, String toKey) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SortedMap<String, Long[]> headMap(String toKey) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SortedMap<String, Long[]> tailMap(String fromKey) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Lists every file under a directory, subdirectories included
+     *
+     * @param path root directory
+     * @return inventory keyed by path relative to the root
+     */
+    public static TreeMap<String, Long[]> walk(String path) {
+        DirectoryWalker root = new DirectoryWalker(Paths.get(path), "");
+        ForkJoinPool.commonPool().invoke(root);
+        List<Map.Entry<String, Long[]>> sorted = new ArrayList<>(root.fileCount);
+        root.collect(sorted);
+        //built from the sorted files in linear time
+        return new TreeMap<>(new SortedFiles(sorted));
+    }
+
+    /**
+     * Checks that a relative path received from another server stays inside the root directory
+     *
+     * @param relativePath path relative to the root
+     * @return true if the path can be safely resolved against the root
+     */
+    public static boolean isValidRelativePath(String relativePath) {
+        if (relativePath == null || relativePath.isEmpty() || relativePath.startsWith("/") || relativePath.contains("\\")) {
+            return false;
+        }
+        if (relativePath.startsWith(FileTransfer.STAGING_DIRECTORY + "/")) {
+            return false; //only written by the transfers themselves
+        }
+        for (String segment : relativePath.split("/", -1)) {
+            if (segment.isEmpty() || segment.equals(".") || segment.equals("..")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes directories left empty by a deletion, from the file parent up to (but excluding) the root
+     *
+     * @param root         root directory
+     * @param relativePath path of the deleted file relative to the root
+     */
+    public static void removeEmptyParents(String root, String relativePath) {
+        int separator = relativePath.lastIndexOf('/');
+        while (separator > 0) {
+            File parent = new File(root + relativePath.substring(0, separator));
+            String[] children = parent.list();
+            if (children == null || children.length > 0 || !parent.delete()) {
+                return;
+            }
+            separator = relativePath.lastIndexOf('/', separator - 1);
+        }
+    }
+
+    /**
+     * Compares the previous top level scan (File.listFiles then File.length and File.lastModified per file)
+     * with this walker on a directory of empty files.
+     * Usage: DirectoryWalker [entries (default 1000000)] [directory (default a new temporary one)]
+     */
+    public static void main(String[] args) throws IOException {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Path directory = args.length > 1 ? Paths.get(args[1]) : Files.createTempDirectory("walker");
+        Files.createDirectories(directory);
+
+        String[] existing = directory.toFile().list();
+        if (existing == null || existing.length < entries) {
+            System.out.println("Creating " + entries + " files in " + directory);
+            for (int i = 0; i < entries; i++) {
+                Path file = directory.resolve("file-" + i + ".txt");
+                if (!Files.exists(file)) {
+                    Files.createFile(file);
+                }
+            }
+        }
+        String path = directory + "/";
+
+        for (int round = 1; round <= 5; round++) {
+            long start = System.nanoTime();
+            TreeMap<String, Long[]> previous = new TreeMap<>();
+            for (File file : new File(path).listFiles()) {
+                previous.put(file.getName(), new Long[]{file.length(), file.lastModified(), 0L});
+            }
+            long previousTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            TreeMap<String, Long[]> walked = walk(path);
+            long walkerTime = System.nanoTime() - start;
+
+            System.out.println("Round " + round + ": listFiles " + previousTime / 1_000_000 + " ms, walker " +
+                    walkerTime / 1_000_000 + " ms (" + previous.size() + "/" + walked.size() + " entries)");
+        }
+    }
+}
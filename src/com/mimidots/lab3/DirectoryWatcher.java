@@ -0,0 +1,119 @@
+package com.mimidots.lab3;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Watches a directory tree for changes on a daemon thread, subdirectories created later included.
+ * <p>
+ * Changes the servers make themselves (downloads, uploads, deletions, materialized files) are not reported: the
+ * writer marks the file with expectWrite() before and after writing it, and events of a marked path (or of its parent
+ * directories, created or removed along with it) are dropped for OWN_WRITE_GRACE after the last mark. A cycle that
+ * writes files does not schedule another cycle to find its own changes.
+ */
+public class DirectoryWatcher {
+    //events of a path written by the server are dropped for this long after its last mark
+    static final long OWN_WRITE_GRACE = 2_000_000_000L; //nanoseconds
+    //time the events of a burst are collected for before they are reported
+    static final long SETTLE_MILLIS = 20;
+    //expired marks are swept once there are this many
+    static final int MAX_OWN_WRITES = 4096;
+
+    //paths written by the servers of this process, by the System.nanoTime their events are dropped until
+    static final ConcurrentHashMap<Path, Long> ownWrites = new ConcurrentHashMap<>();
+
+    /**
+     * Marks a file as written by this server, with its parent directories. Called before and after writing,
+     * creating, moving or deleting it
+     *
+     * @param path absolute path of the file
+     */
+    public static void expectWrite(String path) {
+        long until = System.nanoTime() + OWN_WRITE_GRACE;
+        for (Path marked = Paths.get(path).toAbsolutePath().normalize(); marked != null; marked = marked.getParent()) {
+            ownWrites.put(marked, until);
+        }
+        if (ownWrites.size() > MAX_OWN_WRITES) {
+            long now = System.nanoTime();
+            ownWrites.values().removeIf(expiry -> now - expiry > 0);
+        }
+    }
+
+    /**
+     * @return true if the path was written by this server within OWN_WRITE_GRACE
+     */
+    static boolean isOwnWrite(Path path) {
+        Long until = ownWrites.get(path.toAbsolutePath().normalize());
+        return until != null && System.nanoTime() - until < 0;
+    }
+
+    /**
+     * Registers a directory and all its subdirectories with the watch service, except the staging directory of
+     * partially received files (written continuously during a transfer, not part of the directory)
+     */
+    static void registerDirectoryTree(WatchService watchService, Path tree, Path staging) throws IOException {
+        try (Stream<Path> directories = Files.walk(tree)) {
+            for (Path directory : (Iterable<Path>) directories.filter(Files::isDirectory)::iterator) {
+                if (directory.startsWith(staging)) {
+                    continue;
+                }
+                directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            }
+        }
+    }
+
+    /**
+     * @param directory root of the tree
+     * @param onChange  run after every batch of changes (including an overflow, when changes may have been missed)
+     *                  that was not only made by this server
+     */
+    public static void watch(String directory, Runnable onChange) throws IOException {
+        WatchService watchService = FileSystems.getDefault().newWatchService();
+        Path staging = Paths.get(directory, FileTransfer.STAGING_DIRECTORY);
+        registerDirectoryTree(watchService, Paths.get(directory), staging);
+
+        Thread watcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        WatchKey key = watchService.take();
+                        //changes come in bursts (a file is created, then written), reported once the burst is over
+                        Thread.sleep(SETTLE_MILLIS);
+                        boolean changed = false;
+                        do {
+                            for (WatchEvent<?> event : key.pollEvents()) {
+                                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                                    changed = true;
+                                    continue;
+                                }
+                                Path path = ((Path) key.watchable()).resolve((Path) event.context());
+                                changed |= !isOwnWrite(path);
+                                //new subdirectories have to be watched as well
+                                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                                    try {
+                                        registerDirectoryTree(watchService, path, staging);
+                                    } catch (IOException e) {
+                                        Log.warn("Cannot watch directory {}: {}", path, e.getMessage());
+                                    }
+                                }
+                            }
+                            //a removed subdirectory key is no longer valid, this is expected
+                            key.reset();
+                        } while ((key = watchService.poll()) != null);
+                        if (changed) {
+                            onChange.run();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "directory-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+}
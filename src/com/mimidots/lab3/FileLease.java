@@ -0,0 +1,95 @@
+package com.mimidots.lab3;
+
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Lock of a file held by a client for a limited time.
+ * <p>
+ * The client keeps the lease by renewing it (RENEWLOCK) before it expires; a lease that is not renewed, e.g. because
+ * its client disconnected, expires and the changes queued while it was held are applied as on an unlock.
+ * <p>
+ * Every lease carries a fencing token, higher than the token of any earlier lease of the file. Renewals and unlocks
+ * must present it, so a client that lost its lease (expired, then the file was locked by someone else) cannot
+ * renew or release the lease of the new holder.
+ * <p>
+ * Renewing is a compare-and-set of the deadline field: no lock and no allocation, and the request it comes from is
+ * parsed in place (FrameReader), so a heartbeat costs the server its filename String. Locking allocates the lease and
+ * the queue of its changes.
+ */
+public class FileLease {
+    //deadline of a lease that was unlocked or has expired
+    static final long RELEASED = Long.MIN_VALUE;
+
+    final String filename;
+    volatile long token; //fencing token, drawn once the lease is in the lock table (LockTable.tryLock)
+    final String owner; //connection of the client holding the lease
+    final long lockedAt; //System.nanoTime
+    final long ttlNanos; //time a renewal extends the lease by
+
+    //System.nanoTime the lease expires at unless renewed, RELEASED once unlocked or expired
+    volatile long deadline;
+    static final AtomicLongFieldUpdater<FileLease> DEADLINE =
+            AtomicLongFieldUpdater.newUpdater(FileLease.class, "deadline");
+
+    //Changes[action(delete,create),filename,timestamp,file-data,size] of the file received while it is locked
+    final LinkedBlockingDeque<Object[]> modifications = new LinkedBlockingDeque<>();
+
+    public FileLease(String filename, long token, String owner, long ttlMillis) {
+        this.filename = filename;
+        this.token = token;
+        this.owner = owner;
+        this.lockedAt = System.nanoTime();
+        this.ttlNanos = ttlMillis * 1_000_000L;
+        this.deadline = this.lockedAt + this.ttlNanos;
+    }
+
+    /**
+     * Extends the lease by its time to live
+     *
+     * @param token fencing token presented by the client
+     * @param now   System.nanoTime
+     * @return false if the token does not match or the lease is already released or expired
+     */
+    public boolean renew(long token, long now) {
+        if (token != this.token) {
+            return false;
+        }
+        while (true) {
+            long current = this.deadline;
+            if (current == RELEASED || now - current > 0) {
+                return false;
+            }
+            if (DEADLINE.compareAndSet(this, current, now + this.ttlNanos)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Expires the lease if its deadline has passed
+     *
+     * @param now System.nanoTime
+     * @return true if this call expired it, the caller then applies the queued changes
+     */
+    public boolean expire(long now) {
+        while (true) {
+            long current = this.deadline;
+            if (current == RELEASED || now - current <= 0) {
+                return false;
+            }
+            if (DEADLINE.compareAndSet(this, current, RELEASED)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Releases the lease, e.g. on unlock
+     *
+     * @return true if it was still held, the caller then applies the queued changes
+     */
+    public boolean release() {
+        return DEADLINE.getAndSet(this, RELEASED) != RELEASED;
+    }
+}
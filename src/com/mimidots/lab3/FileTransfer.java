@@ -0,0 +1,319 @@
+package com.mimidots.lab3;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Receiving side of file transfers, and the checkpoints that let an interrupted transfer resume.
+ * <p>
+ * The body of a FILEUPLOAD frame is read from the connection chunk by chunk through a pooled direct buffer into the
+ * file. A file larger than CHECKPOINT_BYTES is written to a staging file under STAGING_DIRECTORY of the server
+ * directory instead (hidden from listings), which replaces the file once complete. Every CHECKPOINT_BYTES the staging
+ * file is forced to disk and its length recorded in a checkpoint next to it. If the connection drops, the staging
+ * file and its last checkpoint stay, and the next transfer of the file resumes from there instead of from the start:
+ * <ul>
+ * <li>server B sends its checkpoints (RESUMEOFFSETS) when asked after server A or a replica link (re)connects</li>
+ * <li>server A sends its own checkpoint of a file with the FILEREQUEST</li>
+ * <li>a checkpoint is sent as the offset and a SHA-256 hash of the staging file up to it; the sender hashes the same
+ * prefix of its file and if it matches sends a FILERESUME frame with the rest of the file, otherwise a full
+ * FILEUPLOAD, which discards the staging file</li>
+ * </ul>
+ * Prefixes are only hashed when a transfer is about to resume, never while receiving.
+ * <p>
+ * The frame header must have been read already (e.g. with deserializeHeader) from an unbuffered stream of the same
+ * connection, so no byte of the body has been consumed yet. The sending side is FrameWriter.writeFileFrame.
+ */
+public class FileTransfer {
+    //staging files and checkpoints, relative to the server directory
+    public static final String STAGING_DIRECTORY = ".partial";
+    static final long CHECKPOINT_BYTES = 8L * 1024 * 1024;
+    static final String PART_SUFFIX = ".part";
+    static final String CHECKPOINT_SUFFIX = ".checkpoint";
+
+    static Path stagingPath(String root, String filename) {
+        return Paths.get(root + STAGING_DIRECTORY + "/" + filename + PART_SUFFIX);
+    }
+
+    static Path checkpointPath(String root, String filename) {
+        return Paths.get(root + STAGING_DIRECTORY + "/" + filename + CHECKPOINT_SUFFIX);
+    }
+
+    /**
+     * Writes the next size bytes of the connection into a file, through its staging file, and sets its timestamp
+     *
+     * @param in        connection channel
+     * @param size      bytes of file data that follow (the body size announced by the frame header, less the offset
+     *                  line of a FILERESUME)
+     * @param root      server directory
+     * @param filename  file relative to the directory, missing parent directories are created
+     * @param timestamp last-modified time to set
+     * @param offset    0 for a FILEUPLOAD, the offset of the checkpoint to resume from for a FILERESUME
+     * @return false if the transfer could not be resumed (the checkpoint is gone), the body has been skipped and the
+     * file left as it was
+     */
+    public static boolean receive(ReadableByteChannel in, long size, String root, String filename, long timestamp,
+                                  long offset) throws IOException {
+        File file = new File(root + filename);
+        Path checkpoint = checkpointPath(root, filename);
+        //the file and the staging directory are written by this server, not changed by someone else
+        DirectoryWatcher.expectWrite(file.getPath());
+        DirectoryWatcher.expectWrite(stagingPath(root, filename).toString());
+        if (offset > 0 && checkpointOffset(root, filename) != offset) {
+            Log.warn("Cannot resume {} at {}, no such checkpoint", filename, offset);
+            skip(in, size);
+            discard(root, filename);
+            return false;
+        }
+        //a complete upload replaces any interrupted one
+        if (offset == 0 && Files.exists(checkpoint)) {
+            discard(root, filename);
+        }
+
+        //files too small to ever reach a checkpoint are written in place, unless the file is a hard link
+        //(-hardlinks) whose other names must keep their contents
+        long end = offset + size;
+        boolean staged = end > CHECKPOINT_BYTES || ContentIndex.isLinked(file.toPath());
+        Path target = staged ? stagingPath(root, filename) : file.toPath();
+        //the file may be in a subdirectory that does not exist yet
+        Files.createDirectories(target.getParent());
+
+        ByteBuffer buffer = BufferPool.acquire((int) Math.min(size, BufferPool.CHUNK_SIZE));
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            //anything past the checkpoint was not forced to disk, it is received again
+            out.truncate(offset);
+            out.position(offset);
+            long position = offset;
+            long nextCheckpoint = offset + CHECKPOINT_BYTES;
+            while (position < end) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                if (in.read(buffer) < 0) {
+                    throw new EOFException("Connection closed with " + (end - position) + " bytes of " + filename + " left");
+                }
+                buffer.flip();
+                position += buffer.remaining();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+
+                if (staged && position >= nextCheckpoint && position < end) {
+                    out.force(false);
+                    writeCheckpoint(checkpoint, position);
+                    nextCheckpoint = position + CHECKPOINT_BYTES;
+                }
+            }
+        } catch (IOException e) {
+            //without a checkpoint there is nothing to resume
+            if (staged && !Files.exists(checkpoint)) {
+                Files.deleteIfExists(target);
+            } else if (!staged) {
+                //a file cut short in place must not look like a newer version, the sender's copy wins next cycle
+                target.toFile().setLastModified(0);
+            }
+            throw e;
+        } finally {
+            BufferPool.release(buffer);
+        }
+
+        target.toFile().setLastModified(timestamp);
+        if (staged) {
+            //complete, replace the file
+            Files.move(target, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            discard(root, filename);
+        }
+        DirectoryWatcher.expectWrite(file.getPath());
+        return true;
+    }
+
+    static void writeCheckpoint(Path checkpoint, long offset) throws IOException {
+        Path temporary = Paths.get(checkpoint + ".tmp");
+        Files.write(temporary, (offset + "\n").getBytes(StandardCharsets.UTF_8));
+        Files.move(temporary, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Removes the staging file and checkpoint of a file, and staging directories left empty
+     */
+    static void discard(String root, String filename) throws IOException {
+        Files.deleteIfExists(stagingPath(root, filename));
+        Files.deleteIfExists(checkpointPath(root, filename));
+        DirectoryWalker.removeEmptyParents(root + STAGING_DIRECTORY + "/", filename);
+    }
+
+    /**
+     * @return offset of the last checkpoint of an interrupted transfer of the file, -1 if none
+     */
+    static long checkpointOffset(String root, String filename) {
+        try {
+            long offset = Long.parseLong(new String(Files.readAllBytes(checkpointPath(root, filename)),
+                    StandardCharsets.UTF_8).trim());
+            return Files.size(stagingPath(root, filename)) < offset ? -1 : offset;
+        } catch (IOException | RuntimeException e) { //no checkpoint, or a damaged one
+            return -1;
+        }
+    }
+
+    /**
+     * @return [offset, prefix-hash] of the last checkpoint of an interrupted transfer of the file, null if none
+     */
+    public static Object[] checkpoint(String root, String filename) {
+        long offset = checkpointOffset(root, filename);
+        if (offset <= 0) {
+            return null;
+        }
+        try {
+            return new Object[]{offset, prefixHash(stagingPath(root, filename).toString(), offset)};
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return checkpoints of all interrupted transfers into the directory, one "offset:hash:filename" line each
+     * (the answer to GETRESUMEOFFSETS)
+     */
+    public static String listCheckpoints(String root) {
+        StringBuilder lines = new StringBuilder();
+        for (String name : DirectoryWalker.walk(root + STAGING_DIRECTORY + "/").keySet()) {
+            if (!name.endsWith(CHECKPOINT_SUFFIX)) {
+                continue;
+            }
+            String filename = name.substring(0, name.length() - CHECKPOINT_SUFFIX.length());
+            Object[] checkpoint = checkpoint(root, filename);
+            if (checkpoint != null) {
+                lines.append(checkpoint[0]).append(':').append(checkpoint[1]).append(':').append(filename).append('\n');
+            }
+        }
+        return lines.toString();
+    }
+
+    /**
+     * @param lines answer of listCheckpoints
+     * @return [offset, prefix-hash] by filename
+     */
+    public static Map<String, Object[]> parseCheckpoints(String lines) {
+        Map<String, Object[]> checkpoints = new TreeMap<>();
+        for (String line : lines.split("\n")) {
+            String[] fields = line.split(":", 3);
+            if (fields.length == 3) {
+                checkpoints.put(fields[2], parseCheckpoint(fields[0] + ":" + fields[1]));
+            }
+        }
+        return checkpoints;
+    }
+
+    /**
+     * @param checkpoint "offset:hash", as sent with a FILEREQUEST
+     * @return [offset, prefix-hash], null if malformed
+     */
+    public static Object[] parseCheckpoint(String checkpoint) {
+        String[] fields = checkpoint.split(":");
+        try {
+            return fields.length == 2 ? new Object[]{Long.parseLong(fields[0]), fields[1]} : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return SHA-256 of the first offset bytes of a file, in hex
+     */
+    static String prefixHash(String path, long offset) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); //every JVM has SHA-256
+        }
+        ByteBuffer buffer = BufferPool.acquire(BufferPool.CHUNK_SIZE);
+        try (FileChannel file = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            long position = 0;
+            while (position < offset) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), offset - position));
+                if (file.read(buffer) < 0) {
+                    throw new EOFException(path + " is shorter than " + offset + " bytes");
+                }
+                buffer.flip();
+                position += buffer.remaining();
+                digest.update(buffer);
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Decides where to send a file from, given the checkpoint the receiver has of it
+     *
+     * @param path       file to send
+     * @param checkpoint [offset, prefix-hash] advertised by the receiver, may be null
+     * @return the checkpoint offset if the file starts with the bytes the receiver has, 0 to send the whole file
+     */
+    public static long resumableOffset(String path, Object[] checkpoint) {
+        if (checkpoint == null) {
+            return 0;
+        }
+        long offset = (Long) checkpoint[0];
+        try {
+            if (offset <= 0 || Files.size(Paths.get(path)) < offset
+                    || !prefixHash(path, offset).equals(checkpoint[1])) {
+                return 0;
+            }
+        } catch (IOException e) {
+            return 0;
+        }
+        return offset;
+    }
+
+    /**
+     * Reads the offset line a FILERESUME body starts with
+     *
+     * @return offset the file data that follows starts at
+     */
+    public static long readResumeOffset(DataInputStream in) throws IOException {
+        return Long.parseLong(Client.readLine(in));
+    }
+
+    /**
+     * @return bytes of the offset line at the start of a FILERESUME body
+     */
+    public static int offsetLineLength(long offset) {
+        return Long.toString(offset).length() + 1;
+    }
+
+    /**
+     * Reads and drops the next size bytes of the connection, e.g. the body of a rejected upload
+     */
+    public static void skip(ReadableByteChannel in, long size) throws IOException {
+        ByteBuffer buffer = BufferPool.acquire((int) Math.min(size, BufferPool.CHUNK_SIZE));
+        try {
+            long remaining = size;
+            while (remaining > 0) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), remaining));
+                int read = in.read(buffer);
+                if (read < 0) {
+                    throw new EOFException("Connection closed with " + remaining + " bytes left to skip");
+                }
+                remaining -= read;
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+}
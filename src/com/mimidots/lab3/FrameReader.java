@@ -0,0 +1,136 @@
+package com.mimidots.lab3;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Input side of a client connection: reads the header of every frame (COMMAND:SIZE:FILENAME:TIMESTAMP\n) into a
+ * buffer reused by the connection and parses it in place.
+ * <p>
+ * Command, size and timestamp are parsed from the header bytes, so only what the handler asks for is allocated:
+ * a RENEWLOCK heartbeat costs the filename String and nothing else. The data of the frame is left in the stream
+ * until data() reads it.
+ */
+public class FrameReader {
+    //initial capacity of the header buffer, it grows for long filenames
+    static final int HEADER_CAPACITY = 256;
+
+    final DataInputStream stream;
+
+    byte[] header = new byte[HEADER_CAPACITY];
+    int commandEnd;
+    int filenameStart;
+    int filenameEnd;
+    long size;
+    long timestamp;
+
+    /**
+     * @param stream buffered stream of the connection
+     */
+    public FrameReader(DataInputStream stream) {
+        this.stream = stream;
+    }
+
+    /**
+     * Reads the header of the next frame, blocking until it has arrived. The data of the previous frame must have
+     * been read.
+     */
+    public void next() throws IOException {
+        int length = 0;
+        int b;
+        while ((b = this.stream.readUnsignedByte()) != '\n') {
+            if (length == this.header.length) {
+                byte[] larger = new byte[this.header.length * 2];
+                System.arraycopy(this.header, 0, larger, 0, length);
+                this.header = larger;
+            }
+            this.header[length++] = (byte) b;
+        }
+
+        this.commandEnd = separator(0, length);
+        int sizeEnd = separator(this.commandEnd + 1, length);
+        this.filenameStart = sizeEnd + 1;
+        this.filenameEnd = separator(this.filenameStart, length);
+        this.size = parseLong(this.commandEnd + 1, sizeEnd);
+        this.timestamp = parseLong(this.filenameEnd + 1, length);
+        if (this.size < 0 || this.size > Integer.MAX_VALUE) {
+            throw new IOException("Invalid frame size " + this.size);
+        }
+    }
+
+    int separator(int from, int length) throws IOException {
+        for (int i = from; i < length; i++) {
+            if (this.header[i] == ':') {
+                return i;
+            }
+        }
+        throw new IOException("Malformed frame header");
+    }
+
+    //an empty field is 0, as in a header without size or timestamp
+    long parseLong(int from, int to) throws IOException {
+        boolean negative = from < to && this.header[from] == '-';
+        long value = 0;
+        for (int i = negative ? from + 1 : from; i < to; i++) {
+            int digit = this.header[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IOException("Malformed number in frame header");
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * @param command name of a command, ASCII
+     * @return true if the frame is that command
+     */
+    public boolean is(String command) {
+        if (command.length() != this.commandEnd) {
+            return false;
+        }
+        for (int i = 0; i < this.commandEnd; i++) {
+            if (this.header[i] != command.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String command() {
+        return new String(this.header, 0, this.commandEnd, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return filename of the frame, empty if none
+     */
+    public String filename() {
+        return new String(this.header, this.filenameStart, this.filenameEnd - this.filenameStart,
+                StandardCharsets.UTF_8);
+    }
+
+    public long size() {
+        return this.size;
+    }
+
+    public long timestamp() {
+        return this.timestamp;
+    }
+
+    /**
+     * Reads the data of the frame
+     */
+    public byte[] data() throws IOException {
+        byte[] data = new byte[(int) this.size];
+        this.stream.readFully(data);
+        return data;
+    }
+
+    /**
+     * Skips the data of the frame, e.g. of a command the handler does not know
+     */
+    public void skipData() throws IOException {
+        this.stream.skipNBytes(this.size);
+    }
+}
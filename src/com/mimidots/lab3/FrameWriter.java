@@ -0,0 +1,261 @@
+package com.mimidots.lab3;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Output side of a connection: writes every frame with as few system calls as possible.
+ * <p>
+ * The header of a frame (COMMAND:SIZE:FILENAME:TIMESTAMP\n, or SIZE\n before a listing) is assembled in a buffer
+ * reused by the connection, and header and payload go out together in a single gathering write of the channel,
+ * without copying the payload into a frame array first. A frame usually costs one write call; a large payload
+ * takes more only when the socket send buffer fills up.
+ * <p>
+ * File contents are sent from a pooled direct buffer, chunk by chunk (writeFileFrame), so a file transfer does not
+ * need a byte array the size of the file.
+ * <p>
+ * Writes of a frame are atomic with respect to other threads writing to the same connection. tryWrite() writes a
+ * frame only if no other frame is being written, e.g. a heartbeat that must not wait behind a file transfer.
+ */
+public class FrameWriter {
+    //initial capacity of the header buffer, it grows for long filenames
+    static final int HEADER_CAPACITY = 256;
+    static final byte[] EMPTY = new byte[0];
+
+    final GatheringByteChannel channel;
+    final Metrics.Counter bytesOut;
+    final Metrics.Counter framesWritten;
+    final Metrics.Counter writeCalls;
+
+    ByteBuffer header = ByteBuffer.allocateDirect(HEADER_CAPACITY);
+    final ByteBuffer[] buffers = new ByteBuffer[2];
+
+    //held while a frame is written
+    final ReentrantLock lock = new ReentrantLock();
+    //System.nanoTime of the last write call that sent bytes
+    volatile long lastWrite = System.nanoTime();
+
+    /**
+     * @param channel blocking channel of the connection, e.g. socket.getChannel()
+     * @param metrics registry the counters are kept in: [name]_bytes_out for this connection,
+     *                frames_written and frame_write_calls for all connections
+     * @param name    connection name
+     */
+    public FrameWriter(GatheringByteChannel channel, Metrics metrics, String name) {
+        this.channel = channel;
+        this.bytesOut = metrics.counter(name + "_bytes_out");
+        this.framesWritten = metrics.counter("frames_written");
+        this.writeCalls = metrics.counter("frame_write_calls");
+    }
+
+    void ensureHeaderCapacity(int bytes) {
+        if (header.remaining() < bytes) {
+            ByteBuffer larger = ByteBuffer.allocateDirect(Math.max(header.capacity() * 2, header.position() + bytes));
+            header.flip();
+            larger.put(header);
+            header = larger;
+        }
+    }
+
+    //puts reserve one more byte for the separator that follows
+    void putString(String value) {
+        ensureHeaderCapacity(value.length() + 1);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80) { //not ASCII, encode the whole string
+                header.position(header.position() - i);
+                byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+                ensureHeaderCapacity(encoded.length + 1);
+                header.put(encoded);
+                return;
+            }
+            header.put((byte) c);
+        }
+    }
+
+    void putLong(long value) {
+        ensureHeaderCapacity(21);
+        if (value < 0) {
+            header.put((byte) '-');
+            value = -value;
+        }
+        int start = header.position();
+        do {
+            header.put((byte) ('0' + value % 10));
+            value /= 10;
+        } while (value > 0);
+        //digits were written lowest first
+        for (int i = start, j = header.position() - 1; i < j; i++, j--) {
+            byte digit = header.get(i);
+            header.put(i, header.get(j));
+            header.put(j, digit);
+        }
+    }
+
+    /**
+     * Writes what is left of the header buffer and the payload buffer
+     */
+    void gather(ByteBuffer payload) throws IOException {
+        buffers[0] = header;
+        buffers[1] = payload;
+        long total = header.remaining() + (long) payload.remaining();
+        long written = 0;
+        while (written < total) {
+            written += channel.write(buffers);
+            writeCalls.increment();
+            lastWrite = System.nanoTime();
+        }
+        bytesOut.add(total);
+    }
+
+    /**
+     * Writes the header buffer and the payload, then resets the header buffer
+     */
+    void flush(byte[] payload, int offset, int length) throws IOException {
+        header.flip();
+        try {
+            gather(ByteBuffer.wrap(payload, offset, length));
+        } finally {
+            header.clear();
+            buffers[1] = null;
+        }
+        framesWritten.increment();
+    }
+
+    void putHeader(String command, long size, String filename, long timestamp) {
+        putString(command);
+        header.put((byte) ':');
+        putLong(size);
+        header.put((byte) ':');
+        putString(filename);
+        header.put((byte) ':');
+        putLong(timestamp);
+        header.put((byte) '\n');
+    }
+
+    /**
+     * Writes a frame COMMAND:SIZE:FILENAME:TIMESTAMP\nDATA
+     *
+     * @param data payload, may be null
+     */
+    public void writeFrame(String command, byte[] data, String filename, long timestamp) throws IOException {
+        lock.lock();
+        try {
+            putHeader(command, data == null ? 0 : data.length, filename, timestamp);
+            flush(data == null ? EMPTY : data, 0, data == null ? 0 : data.length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes a frame COMMAND:SIZE:FILENAME:TIMESTAMP\nDATA with the contents of a file as data, read chunk by chunk
+     * into a pooled buffer. The header goes out with the first chunk.
+     *
+     * @param path file to send
+     * @return size of the file
+     */
+    public long writeFileFrame(String command, String path, String filename, long timestamp) throws IOException {
+        return writeFileFrame(command, path, filename, timestamp, 0);
+    }
+
+    /**
+     * Writes a file frame with the contents of a file from an offset on. With an offset (FILERESUME) the data
+     * starts with an OFFSET\n line, followed by the file from that offset.
+     *
+     * @param offset where the receiver resumes, 0 for the whole file
+     * @return size of the file, of which size - offset bytes were sent
+     */
+    public long writeFileFrame(String command, String path, String filename, long timestamp, long offset)
+            throws IOException {
+        lock.lock();
+        try (FileChannel file = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            long size = file.size();
+            long remaining = Math.max(size - offset, 0);
+            ByteBuffer chunk = BufferPool.acquire((int) Math.min(remaining, BufferPool.CHUNK_SIZE));
+            try {
+                if (offset > 0) {
+                    putHeader(command, remaining + FileTransfer.offsetLineLength(offset), filename, timestamp);
+                    putLong(offset);
+                    header.put((byte) '\n');
+                    file.position(offset);
+                } else {
+                    putHeader(command, size, filename, timestamp);
+                }
+                header.flip();
+                do {
+                    chunk.clear().limit((int) Math.min(chunk.capacity(), remaining));
+                    while (chunk.hasRemaining()) {
+                        if (file.read(chunk) < 0) {
+                            //the file shrank while being sent, its new timestamp makes the next cycle send it again
+                            Log.warn("{} changed while being sent", filename);
+                            while (chunk.hasRemaining()) {
+                                chunk.put((byte) 0);
+                            }
+                        }
+                    }
+                    chunk.flip();
+                    remaining -= chunk.remaining();
+                    gather(chunk);
+                } while (remaining > 0);
+            } finally {
+                header.clear();
+                buffers[1] = null;
+                BufferPool.release(chunk);
+            }
+            framesWritten.increment();
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes a listing for a client: SIZE\nDATA
+     */
+    public void writeSized(byte[] data) throws IOException {
+        lock.lock();
+        try {
+            putLong(data.length);
+            header.put((byte) '\n');
+            flush(data, 0, data.length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes an already serialized frame (or a line such as a LEASE answer) as it is
+     */
+    public void write(byte[] frame) throws IOException {
+        lock.lock();
+        try {
+            flush(frame, 0, frame.length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes an already serialized frame, unless another frame is being written
+     *
+     * @return false if the frame was not written
+     */
+    public boolean tryWrite(byte[] frame) throws IOException {
+        if (!lock.tryLock()) {
+            return false;
+        }
+        try {
+            flush(frame, 0, frame.length);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.mimidots.lab3;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.function.LongSupplier;
+
+/**
+ * Failure detection of a server A - server B connection, one at each end.
+ * <p>
+ * Each end sends a HEARTBEAT frame whenever it has sent nothing for INTERVAL, so the other end hears from it at least
+ * that often, also while it is busy (hashing, copying, writing a large file). A heartbeat never waits behind a frame
+ * being written: the frame shows the end is alive.
+ * <p>
+ * A connection nothing has arrived on for TIMEOUT is closed: the peer is gone (crashed, restarted, unreachable) even
+ * if no error was reported, e.g. no FIN or RST made it through. Closing it makes the threads blocked on it fail right
+ * away. Server A then reconnects, server B drops the connection.
+ * <p>
+ * Server A starts the heartbeats of a connection by sending the first one, server B only heartbeats the connections
+ * it has received one from (replicas are fed without reading, they do not take part).
+ */
+public class Heartbeat implements Runnable {
+    static final long INTERVAL = 1_000; //milliseconds
+    static final long TIMEOUT = 5 * INTERVAL;
+    static final byte[] FRAME = (ServerA.COMMAND.HEARTBEAT.name() + ":0::0\n").getBytes();
+
+    final Socket socket;
+    final FrameWriter writer;
+    final LongSupplier received; //bytes that arrived so far, read or not
+    final String connection;
+
+    /**
+     * @param received bytes that arrived on the connection so far, read or not yet read
+     */
+    public Heartbeat(Socket socket, FrameWriter writer, LongSupplier received, String connection) {
+        this.socket = socket;
+        this.writer = writer;
+        this.received = received;
+        this.connection = connection;
+    }
+
+    @Override
+    public void run() {
+        long heard = received.getAsLong();
+        long heardAt = System.nanoTime();
+        try {
+            while (!socket.isClosed()) {
+                Thread.sleep(INTERVAL / 4);
+                long now = System.nanoTime();
+                if (now - writer.lastWrite >= INTERVAL * 1_000_000) {
+                    writer.tryWrite(FRAME);
+                }
+
+                long arrived = received.getAsLong();
+                if (arrived != heard) {
+                    heard = arrived;
+                    heardAt = now;
+                } else if (now - heardAt > TIMEOUT * 1_000_000) {
+                    Log.warn("Nothing heard from {} for {} ms, closing the connection", connection,
+                            (now - heardAt) / 1_000_000);
+                    socket.close();
+                }
+            }
+        } catch (IOException e) {
+            //closed by the other end or by the connection owner, the owner finds out by itself
+            Log.debug("Heartbeats of {} stopped: {}", connection, e.toString());
+        } catch (InterruptedException e) {
+            Log.debug("Heartbeats of {} interrupted", connection);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Starts the heartbeats of a connection on a daemon thread
+     */
+    static void start(Socket socket, FrameWriter writer, LongSupplier received, String connection) {
+        Thread thread = new Thread(new Heartbeat(socket, writer, received, connection), "heartbeat-" + connection);
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
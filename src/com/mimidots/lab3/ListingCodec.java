@@ -0,0 +1,264 @@
+package com.mimidots.lab3;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Binary encoding of a directory listing.
+ * <p>
+ * Every file is encoded as
+ * SHARED SUFFIXLENGTH SUFFIX SIZE TIMESTAMPDELTA LOCKED
+ * where SHARED is the number of leading bytes the (UTF-8) filename shares with the previous filename and SUFFIX the
+ * remaining bytes (front coding, sorted names under a common directory mostly share long prefixes).
+ * TIMESTAMPDELTA is the difference with the previous file timestamp, zigzag encoded so it can be negative.
+ * All numbers are unsigned variable length integers (7 bits per byte, high bit set on all but the last byte),
+ * so small sizes and deltas take one or two bytes instead of up to 20 decimal digits and a delimiter.
+ * <p>
+ * The first file of a listing is encoded against an empty name and a zero timestamp, so listing pages can be
+ * decoded independently. The decoder works on the bytes directly and only creates one String per filename.
+ * Listings come from other processes, a truncated or corrupt one is rejected with an IOException.
+ */
+public class ListingCodec {
+
+    /**
+     * Appends files to a growing buffer
+     */
+    public static class Encoder {
+        byte[] buffer = new byte[4096];
+        int length = 0;
+
+        byte[] previousName = new byte[0];
+        long previousTimestamp = 0;
+
+        void ensureCapacity(int extra) {
+            if (length + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+            }
+        }
+
+        void writeVarLong(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[length++] = (byte) value;
+        }
+
+        /**
+         * @param filename name of the file
+         * @param metadata [file-size,file-timestamp,file-lock-flag]
+         */
+        public void add(String filename, Long[] metadata) {
+            byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+
+            int shared = 0;
+            int limit = Math.min(name.length, previousName.length);
+            while (shared < limit && name[shared] == previousName[shared]) {
+                shared++;
+            }
+
+            writeVarLong(shared);
+            writeVarLong(name.length - shared);
+            ensureCapacity(name.length - shared);
+            System.arraycopy(name, shared, buffer, length, name.length - shared);
+            length += name.length - shared;
+
+            long delta = metadata[1] - previousTimestamp;
+            writeVarLong(metadata[0]);
+            writeVarLong((delta << 1) ^ (delta >> 63)); //zigzag
+            writeVarLong(metadata[2]);
+
+            previousName = name;
+            previousTimestamp = metadata[1];
+        }
+
+        /**
+         * @return number of bytes encoded so far
+         */
+        public int size() {
+            return length;
+        }
+
+        public byte[] toByteArray() {
+            return Arrays.copyOf(buffer, length);
+        }
+
+        /**
+         * Starts a new, independently decodable listing. The buffer is kept for reuse.
+         */
+        public void reset() {
+            length = 0;
+            previousName = new byte[0];
+            previousTimestamp = 0;
+        }
+    }
+
+    /**
+     * @param files A map of files metadata
+     * @return encoded listing
+     */
+    public static byte[] encode(Map<String, Long[]> files) {
+        Encoder encoder = new Encoder();
+        for (Map.Entry<String, Long[]> file : files.entrySet()) {
+            encoder.add(file.getKey(), file.getValue());
+        }
+        return encoder.toByteArray();
+    }
+
+    /**
+     * Reads the numbers of an encoded listing in place
+     */
+    static class Decoder {
+        final byte[] data;
+        int position = 0;
+
+        Decoder(byte[] data) {
+            this.data = data;
+        }
+
+        long readVarLong() throws IOException {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                if (position >= data.length) {
+                    throw new IOException("Corrupt listing, number truncated at byte " + position);
+                }
+                if (shift > 63) {
+                    throw new IOException("Corrupt listing, number too long at byte " + position);
+                }
+                b = data[position++];
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+
+        /**
+         * @param limit largest value allowed
+         */
+        int readLength(long limit) throws IOException {
+            long value = readVarLong();
+            if (value < 0 || value > limit) {
+                throw new IOException("Corrupt listing, length " + value + " above " + limit + " at byte " + position);
+            }
+            return (int) value;
+        }
+    }
+
+    /**
+     * Decodes a listing one file at a time, so it can be iterated without building a map
+     */
+    public static class Reader {
+        final Decoder decoder;
+        byte[] name = new byte[256]; //previous name bytes, the shared prefix is kept in place
+        int previousLength = 0;
+        long timestamp = 0;
+
+        //file read by the last call to next
+        String filename;
+        Long[] metadata; //[file-size,file-timestamp,file-lock-flag]
+
+        public Reader(byte[] data) {
+            this.decoder = new Decoder(data);
+        }
+
+        /**
+         * Reads the next file into filename and metadata
+         *
+         * @return false at the end of the listing
+         * @throws IOException if the listing is truncated or corrupt
+         */
+        public boolean next() throws IOException {
+            byte[] data = decoder.data;
+            if (decoder.position >= data.length) {
+                return false;
+            }
+            //a name can only share the previous name, its suffix can only be as long as the bytes left
+            int shared = decoder.readLength(previousLength);
+            int suffixLength = decoder.readLength(Integer.MAX_VALUE);
+            if (suffixLength > data.length - decoder.position) {
+                throw new IOException("Corrupt listing, name truncated at byte " + decoder.position);
+            }
+            if (shared + suffixLength > name.length) {
+                name = Arrays.copyOf(name, Math.max(name.length * 2, shared + suffixLength));
+            }
+            System.arraycopy(data, decoder.position, name, shared, suffixLength);
+            decoder.position += suffixLength;
+            previousLength = shared + suffixLength;
+            filename = new String(name, 0, previousLength, StandardCharsets.UTF_8);
+
+            long size = decoder.readVarLong();
+            long delta = decoder.readVarLong();
+            timestamp += (delta >>> 1) ^ -(delta & 1); //zigzag
+            long locked = decoder.readVarLong();
+            metadata = new Long[]{size, timestamp, locked};
+            return true;
+        }
+    }
+
+    /**
+     * Decodes a listing into a map
+     *
+     * @param data   encoded listing
+     * @param target map receiving filename as key, [file-size,file-timestamp,file-lock-flag] as value
+     * @return the target map
+     * @throws IOException if the listing is truncated or corrupt
+     */
+    public static <M extends Map<String, Long[]>> M decode(byte[] data, M target) throws IOException {
+        Reader reader = new Reader(data);
+        while (reader.next()) {
+            target.put(reader.filename, reader.metadata);
+        }
+        return target;
+    }
+
+    /**
+     * Compares listing bytes and parse time of the previous text format with this encoding.
+     * Usage: ListingCodec [entries (default 1000000)]
+     */
+    public static void main(String[] args) throws IOException {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+
+        TreeMap<String, Long[]> files = new TreeMap<>();
+        for (int i = 0; i < entries; i++) {
+            files.put("projects/2021/reports/quarter-" + (i % 4) + "/report-" + i + ".pdf",
+                    new Long[]{1024L + i % 5000, 1_600_000_000_000L + i * 1000L, 0L});
+        }
+
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Long[]> file : files.entrySet()) {
+            Long[] metadata = file.getValue();
+            builder.append(file.getKey()).append(':').append(metadata[0]).append(':').append(metadata[1]).append(':')
+                    .append(metadata[2]).append('\n');
+        }
+        byte[] text = builder.toString().getBytes();
+        byte[] binary = encode(files);
+        System.out.println("Text listing " + text.length + " bytes, binary listing " + binary.length + " bytes");
+
+        for (int round = 1; round <= 5; round++) {
+            System.gc(); //do not charge one side with the garbage of the other
+            long start = System.nanoTime();
+            TreeMap<String, Long[]> parsed = new TreeMap<>();
+            for (String meta : new String(text).split("\n")) {
+                String[] f = meta.split(":");
+                parsed.put(f[0], new Long[]{Long.valueOf(f[1]), Long.valueOf(f[2]), Long.valueOf(f[3])});
+            }
+            long textTime = System.nanoTime() - start;
+            int parsedSize = parsed.size();
+            parsed = null;
+
+            System.gc();
+            start = System.nanoTime();
+            TreeMap<String, Long[]> decoded = decode(binary, new TreeMap<>());
+            long binaryTime = System.nanoTime() - start;
+
+            System.out.println("Round " + round + ": text parse " + textTime / 1_000_000 + " ms, binary decode " +
+                    binaryTime / 1_000_000 + " ms (" + parsedSize + "/" + decoded.size() + " entries)");
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.mimidots.lab3;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/**
+ * Server B inventory as last seen by server A, with its hash tree.
+ * <p>
+ * The files are kept as one encoded listing (see ListingCodec) and decoded again whenever they are iterated. A file
+ * takes some 20 bytes this way instead of a map entry with its String and Long[] (over 150 bytes), and the hash tree
+ * only keeps hashes, so what stays in memory between cycles is a fraction of one decoded inventory.
+ * Buckets that changed on server B are replaced by merging the old listing with their new files into a new listing.
+ */
+public class ListingMirror {
+    byte[] listing; //every file of server B, sorted by filename
+    int size;
+    final MerkleTree tree = new MerkleTree();
+
+    /**
+     * @param listing encoded listing of every server B file, sorted by filename
+     */
+    public ListingMirror(byte[] listing) throws IOException {
+        this.listing = listing;
+        ListingCodec.Reader reader = new ListingCodec.Reader(listing);
+        while (reader.next()) {
+            tree.add(reader.filename, reader.metadata);
+            size++;
+        }
+        tree.rehash();
+    }
+
+    /**
+     * @return hash of an inventory tree node
+     */
+    public long hash(int node) {
+        return tree.hash(node);
+    }
+
+    /**
+     * Iterates the files in filename order, decoding them as they are read. Replacing buckets meanwhile does not
+     * change what the iterator returns.
+     *
+     * @param include files to iterate, by filename
+     */
+    public Iterator<Map.Entry<String, Long[]>> iterator(Predicate<String> include) {
+        ListingCodec.Reader reader = new ListingCodec.Reader(listing);
+        return new Iterator<Map.Entry<String, Long[]>>() {
+            Map.Entry<String, Long[]> next = advance();
+
+            Map.Entry<String, Long[]> advance() {
+                try {
+                    while (reader.next()) {
+                        if (include.test(reader.filename)) {
+                            return new AbstractMap.SimpleImmutableEntry<>(reader.filename, reader.metadata);
+                        }
+                    }
+                    return null;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry<String, Long[]> next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<String, Long[]> entry = next;
+                next = advance();
+                return entry;
+            }
+        };
+    }
+
+    /**
+     * Replaces the files of some buckets and updates the hashes up to the root
+     *
+     * @param buckets indexes of the buckets to replace
+     * @param files   new files of those buckets, sorted. Files of other buckets are ignored
+     */
+    public void replaceBuckets(int[] buckets, TreeMap<String, Long[]> files) throws IOException {
+        Map<Integer, TreeMap<String, Long[]>> replaced = new HashMap<>();
+        for (int bucket : buckets) {
+            replaced.put(bucket, new TreeMap<>());
+        }
+        for (Map.Entry<String, Long[]> file : files.entrySet()) {
+            TreeMap<String, Long[]> entries = replaced.get(MerkleTree.bucketOf(file.getKey()));
+            if (entries != null) {
+                entries.put(file.getKey(), file.getValue());
+            }
+        }
+
+        //merge the files of the other buckets with the new files, both sorted
+        ListingCodec.Encoder encoder = new ListingCodec.Encoder();
+        ListingCodec.Reader reader = new ListingCodec.Reader(listing);
+        Iterator<Map.Entry<String, Long[]>> added = files.entrySet().iterator();
+        Map.Entry<String, Long[]> next = nextReplaced(added, replaced);
+        size = 0;
+        while (reader.next()) {
+            if (replaced.containsKey(MerkleTree.bucketOf(reader.filename))) {
+                continue; //dropped, the bucket has new files
+            }
+            while (next != null && next.getKey().compareTo(reader.filename) < 0) {
+                encoder.add(next.getKey(), next.getValue());
+                size++;
+                next = nextReplaced(added, replaced);
+            }
+            encoder.add(reader.filename, reader.metadata);
+            size++;
+        }
+        while (next != null) {
+            encoder.add(next.getKey(), next.getValue());
+            size++;
+            next = nextReplaced(added, replaced);
+        }
+        listing = encoder.toByteArray();
+
+        for (Map.Entry<Integer, TreeMap<String, Long[]>> bucket : replaced.entrySet()) {
+            tree.replaceBucket(bucket.getKey(), bucket.getValue());
+        }
+    }
+
+    static Map.Entry<String, Long[]> nextReplaced(Iterator<Map.Entry<String, Long[]>> files,
+                                                Map<Integer, TreeMap<String, Long[]>> replaced) {
+        while (files.hasNext()) {
+            Map.Entry<String, Long[]> file = files.next();
+            if (replaced.containsKey(MerkleTree.bucketOf(file.getKey()))) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return number of files
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return bytes of the encoded listing
+     */
+    public int bytes() {
+        return listing.length;
+    }
+}
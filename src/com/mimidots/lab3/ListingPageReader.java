@@ -0,0 +1,118 @@
+package com.mimidots.lab3;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+/**
+ * Reads a paged directory listing from server B one page at a time.
+ * <p>
+ * Server B sends a listing as LISTINGPAGE frames followed by a final FOLDERLISTING frame. Pages hold consecutive
+ * entries in filename order, so iterating the pages gives the whole listing sorted without ever holding more than one
+ * page of serialized data. The next page is only read from the stream once the current one has been consumed,
+ * so a caller can start comparing while the rest of the listing is still arriving.
+ * <p>
+ * Read errors are thrown as UncheckedIOException since Iterator methods cannot throw IOException.
+ */
+public class ListingPageReader implements Iterator<Map.Entry<String, Long[]>> {
+    final ServerA server;
+    final DataInputStream inStream;
+    final ListingCodec.Encoder copy; //receives every entry read, may be null
+    final boolean ownedOnly; //only iterate the files owned by this server shard
+
+    Iterator<Map.Entry<String, Long[]>> page = null;
+    boolean lastPageRead = false;
+    int pagesRead = 0;
+
+    /**
+     * @param server    used to deserialize the frames
+     * @param inStream  server B input stream, right after the listing request was sent
+     * @param copy      encoder receiving every entry as its page is read (including other shards files), in filename
+     *                  order, may be null
+     * @param ownedOnly true to skip the files owned by other shards when iterating
+     */
+    public ListingPageReader(ServerA server, DataInputStream inStream, ListingCodec.Encoder copy, boolean ownedOnly) {
+        this.server = server;
+        this.inStream = inStream;
+        this.copy = copy;
+        this.ownedOnly = ownedOnly;
+    }
+
+    /**
+     * @return true once the whole listing has been read from the stream
+     */
+    public boolean isComplete() {
+        return lastPageRead && (page == null || !page.hasNext());
+    }
+
+    void readPage() throws IOException {
+        TreeMap<String, Object> response = new TreeMap<>();
+        while (!response.getOrDefault("command", "").equals(ServerA.COMMAND.LISTINGPAGE.name()) &&
+                !response.getOrDefault("command", "").equals(ServerA.COMMAND.FOLDERLISTING.name())) {
+            response = server.deserializeData(inStream);
+        }
+        lastPageRead = response.get("command").equals(ServerA.COMMAND.FOLDERLISTING.name());
+        pagesRead++;
+
+        TreeMap<String, Long[]> files = server.deserializeFiles((byte[]) response.get("data"));
+        //never let a path from server B point outside this server directory
+        files.keySet().removeIf(filename -> {
+            if (!DirectoryWalker.isValidRelativePath(filename)) {
+                Log.warn("Ignoring invalid path from server B: {}", filename);
+                return true;
+            }
+            return false;
+        });
+        if (copy != null) {
+            for (Map.Entry<String, Long[]> file : files.entrySet()) {
+                copy.add(file.getKey(), file.getValue());
+            }
+        }
+        if (ownedOnly) {
+            server.filterOwnedFiles(files);
+        }
+        page = files.entrySet().iterator();
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            while ((page == null || !page.hasNext()) && !lastPageRead) {
+                readPage();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return page != null && page.hasNext();
+    }
+
+    @Override
+    public Map.Entry<String, Long[]> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return page.next();
+    }
+
+    /**
+     * Reads the rest of the listing into a map
+     *
+     * @return remaining entries of the listing
+     */
+    public TreeMap<String, Long[]> readAll() throws IOException {
+        TreeMap<String, Long[]> files = new TreeMap<>();
+        try {
+            while (hasNext()) {
+                Map.Entry<String, Long[]> entry = next();
+                files.put(entry.getKey(), entry.getValue());
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return files;
+    }
+}
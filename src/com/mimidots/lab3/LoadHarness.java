@@ -0,0 +1,425 @@
+package com.mimidots.lab3;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * End to end load test on a single machine.
+ * <p>
+ * Starts server B and server A in this process on loopback ports with temporary directories. Server A reaches
+ * server B through a counting proxy, so every byte of the synchronization protocol is measured.
+ * Then it runs synthetic clients, which read listings and send LOCKFILE/UNLOCKFILE, and a mutator, which
+ * creates, modifies and deletes files on both directories at a fixed rate.
+ * <p>
+ * Reported at the end:
+ * - convergence latency: from a change on one side until both directories hold the same file (or neither does)
+ * - listing push latency: from a change until a client receives a listing showing it
+ * - protocol bytes between the servers per converged change
+ * - server CPU time per client (process CPU minus the harness threads)
+ * <p>
+ * Usage: LoadHarness [-clients 10] [-rate 5] [-seconds 60] [-filesize 4096] [-lockprobability 0.2]
+ * or run loadtest.sh which compiles lab3 first.
+ */
+public class LoadHarness {
+    static final PrintStream console = System.out;
+
+    /**
+     * A change made by the mutator
+     */
+    static class Change {
+        final String filename;
+        final long time; //System.nanoTime of the change
+        final boolean exists; //false for a deletion
+        final long size;
+
+        Change(String filename, long time, boolean exists, long size) {
+            this.filename = filename;
+            this.time = time;
+            this.exists = exists;
+            this.size = size;
+        }
+    }
+
+    int clients = 10;
+    double rate = 5; //changes per second
+    int seconds = 60;
+    int fileSize = 4096;
+    double lockProbability = 0.2; //chance a client locks a file after a listing
+
+    Path directoryA;
+    Path directoryB;
+
+    //changes not converged yet <filename, change>
+    final ConcurrentHashMap<String, Change> pending = new ConcurrentHashMap<>();
+    //files present on both sides and not being changed
+    final List<String> stable = Collections.synchronizedList(new ArrayList<>());
+    //every change, in order, read by the clients
+    final List<Change> changes = new CopyOnWriteArrayList<>();
+
+    final List<Long> convergenceLatencies = Collections.synchronizedList(new ArrayList<>());
+    final List<Long> pushLatencies = Collections.synchronizedList(new ArrayList<>());
+    final AtomicLong listingsReceived = new AtomicLong();
+    final AtomicLong listingBytes = new AtomicLong();
+    final AtomicLong lockCommands = new AtomicLong();
+    final AtomicLong protocolBytes = new AtomicLong();
+
+    final List<Thread> harnessThreads = new CopyOnWriteArrayList<>();
+    volatile boolean running = true;
+
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Waits until a server listens on a port. Binding is tried instead of connecting,
+     * a connection would be taken for a client by the server.
+     */
+    static void waitForPort(int port) throws InterruptedException {
+        while (true) {
+            try {
+                new ServerSocket(port).close();
+            } catch (IOException e) {
+                return;
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    Thread start(String name, Runnable runnable, boolean harness) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        if (harness) {
+            harnessThreads.add(thread);
+        }
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Copies one direction of the proxied connection, counting the bytes
+     */
+    void pump(InputStream in, OutputStream out) {
+        byte[] buffer = new byte[64 * 1024];
+        try {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+                out.flush();
+                protocolBytes.addAndGet(read);
+            }
+        } catch (IOException e) {
+            //connection closed at the end of the run
+        }
+    }
+
+    /**
+     * Forwards server A connections to server B
+     */
+    void proxy(int port, int portServerB) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(port);
+        start("proxy", () -> {
+            try {
+                while (running) {
+                    Socket fromA = serverSocket.accept();
+                    Socket toB = new Socket("localhost", portServerB);
+                    start("proxy-a-b", () -> {
+                        try {
+                            pump(fromA.getInputStream(), toB.getOutputStream());
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }, true);
+                    start("proxy-b-a", () -> {
+                        try {
+                            pump(toB.getInputStream(), fromA.getOutputStream());
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }, true);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, true);
+    }
+
+    static byte[] content(int size) {
+        byte[] data = new byte[size];
+        ThreadLocalRandom.current().nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Makes changes at the configured rate, on either directory, to files that are not being synchronized
+     */
+    void mutator() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long interval = (long) (1_000_000_000L / rate);
+        long next = System.nanoTime();
+        int created = 0;
+
+        while (running) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            next += interval;
+
+            Path side = random.nextBoolean() ? directoryA : directoryB;
+            int operation = random.nextInt(10);
+            try {
+                String filename;
+                Change change;
+                if (operation < 4 || stable.size() < 10) { //create
+                    filename = "load-" + created++ + ".txt";
+                    int size = fileSize / 2 + random.nextInt(fileSize);
+                    Files.write(side.resolve(filename), content(size));
+                    change = new Change(filename, System.nanoTime(), true, size);
+                } else {
+                    filename = stable.remove(random.nextInt(stable.size()));
+                    if (operation < 8) { //modify, with a different size so that listings show it
+                        long size = Files.size(side.resolve(filename)) + 1 + random.nextInt(fileSize);
+                        Files.write(side.resolve(filename), content((int) size));
+                        change = new Change(filename, System.nanoTime(), true, size);
+                    } else { //delete
+                        Files.delete(side.resolve(filename));
+                        change = new Change(filename, System.nanoTime(), false, 0);
+                    }
+                }
+                pending.put(filename, change);
+                changes.add(change);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Records the convergence of pending changes
+     */
+    void checker() {
+        while (running) {
+            for (Change change : pending.values()) {
+                Path a = directoryA.resolve(change.filename);
+                Path b = directoryB.resolve(change.filename);
+                try {
+                    boolean converged;
+                    if (change.exists) {
+                        converged = Files.exists(a) && Files.exists(b) && Files.size(a) == change.size &&
+                                Files.mismatch(a, b) == -1;
+                    } else {
+                        converged = !Files.exists(a) && !Files.exists(b);
+                    }
+                    if (converged) {
+                        convergenceLatencies.add(System.nanoTime() - change.time);
+                        pending.remove(change.filename);
+                        if (change.exists) {
+                            stable.add(change.filename);
+                        }
+                    }
+                } catch (IOException e) {
+                    //file replaced while comparing, check again on the next round
+                }
+            }
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * A synthetic client: reads every listing, checks which changes it shows and sometimes locks or unlocks a file
+     */
+    void client(int portServerA) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Client protocol = new Client();
+        //changes this client has not seen in a listing yet <filename, change>
+        Map<String, Change> unseen = new HashMap<>();
+        int changesRead = 0;
+        int lockedIndex = -1;
+        String leasedFile = "";
+        long leaseToken = 0;
+
+        try (Socket socket = new Socket("localhost", portServerA)) {
+            DataInputStream inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
+
+            while (running) {
+                //listings are sent as SIZE\nDATA, lease answers as LEASE:token:ttl:filename\n
+                String line = Client.readLine(inputStream);
+                if (line.startsWith("LEASE:")) {
+                    String[] lease = line.split(":", 4);
+                    leasedFile = lease[3];
+                    leaseToken = Long.parseLong(lease[1]);
+                    if (leaseToken == 0) { //refused, someone else holds the file
+                        lockedIndex = -1;
+                    }
+                    continue;
+                }
+                byte[] data = inputStream.readNBytes(Integer.parseInt(line));
+                TreeMap<String, Long[]> files = protocol.deserializeFiles(data);
+                long now = System.nanoTime();
+                listingsReceived.incrementAndGet();
+                listingBytes.addAndGet(data.length);
+
+                //a newer change of a file replaces an older one
+                for (; changesRead < changes.size(); changesRead++) {
+                    Change change = changes.get(changesRead);
+                    unseen.put(change.filename, change);
+                }
+                for (Iterator<Change> iterator = unseen.values().iterator(); iterator.hasNext(); ) {
+                    Change change = iterator.next();
+                    Long[] metadata = files.get(change.filename);
+                    if (change.exists ? metadata != null && metadata[0] == change.size : metadata == null) {
+                        pushLatencies.add(now - change.time);
+                        iterator.remove();
+                    }
+                }
+
+                if (lockedIndex >= 0 && leaseToken == 0) {
+                    //waiting for the answer to the lock, the lease is needed to unlock
+                    continue;
+                } else if (lockedIndex >= 0) {
+                    outputStream.write(protocol.serializeData(ServerA.COMMAND.UNLOCKFILE.name(), Integer.toString(lockedIndex).getBytes(),
+                            leasedFile, leaseToken));
+                    leasedFile = "";
+                    leaseToken = 0;
+                    lockCommands.incrementAndGet();
+                    lockedIndex = -1;
+                } else if (!files.isEmpty() && random.nextDouble() < lockProbability) {
+                    lockedIndex = random.nextInt(files.size());
+                    outputStream.write(protocol.serializeData(ServerA.COMMAND.LOCKFILE.name(), Integer.toString(lockedIndex).getBytes(), "", 0L));
+                    lockCommands.incrementAndGet();
+                }
+            }
+        } catch (IOException e) {
+            if (running) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    static String percentiles(List<Long> latencies) {
+        if (latencies.isEmpty()) {
+            return "no samples";
+        }
+        long[] sorted;
+        synchronized (latencies) {
+            sorted = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+        }
+        return String.format("p50 %d ms, p90 %d ms, p99 %d ms, max %d ms (%d samples)",
+                sorted[sorted.length / 2] / 1_000_000, sorted[(int) (sorted.length * 0.9)] / 1_000_000,
+                sorted[(int) (sorted.length * 0.99)] / 1_000_000, sorted[sorted.length - 1] / 1_000_000, sorted.length);
+    }
+
+    static void deleteDirectory(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    void run() throws Exception {
+        directoryA = Files.createTempDirectory("load-a");
+        directoryB = Files.createTempDirectory("load-b");
+        int portServerB = freePort();
+        int portProxy = freePort();
+        int portServerA = freePort();
+
+        //the servers log every frame, keep the report readable
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        start("server-b", () -> ServerB.main(new String[]{Integer.toString(portServerB), directoryB + "/"}), false);
+        waitForPort(portServerB);
+        proxy(portProxy, portServerB);
+        start("server-a", () -> ServerA.main(new String[]{Integer.toString(portServerA), directoryA + "/",
+                "localhost:" + portProxy}), false);
+        waitForPort(portServerA);
+
+        console.println("Server B on " + portServerB + " (" + directoryB + "), server A on " + portServerA +
+                " (" + directoryA + "), " + clients + " clients, " + rate + " changes/s for " + seconds + "s");
+
+        com.sun.management.OperatingSystemMXBean system =
+                (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        long cpuStart = system.getProcessCpuTime();
+        long start = System.nanoTime();
+
+        for (int i = 0; i < clients; i++) {
+            start("client-" + i, () -> client(portServerA), true);
+        }
+        start("mutator", this::mutator, true);
+        start("checker", this::checker, true);
+
+        for (int second = 1; second <= seconds; second++) {
+            Thread.sleep(1000);
+            if (second % 10 == 0) {
+                console.println(second + "s: " + changes.size() + " changes, " + pending.size() + " pending, " +
+                        listingsReceived.get() + " listings received");
+            }
+        }
+
+        //measure before stopping, the harness threads are still alive
+        long elapsed = System.nanoTime() - start;
+        long harnessCpu = 0;
+        for (Thread thread : harnessThreads) {
+            long cpu = ManagementFactory.getThreadMXBean().getThreadCpuTime(thread.getId());
+            harnessCpu += Math.max(cpu, 0);
+        }
+        long serverCpu = system.getProcessCpuTime() - cpuStart - harnessCpu;
+        running = false;
+
+        int converged = convergenceLatencies.size();
+        console.println();
+        console.println("Changes made:          " + changes.size() + " (" + pending.size() + " not converged at the end)");
+        console.println("Convergence latency:   " + percentiles(convergenceLatencies));
+        console.println("Listing push latency:  " + percentiles(pushLatencies));
+        console.println("Listings received:     " + listingsReceived.get() + ", " +
+                listingBytes.get() / Math.max(listingsReceived.get(), 1) + " bytes each on average");
+        console.println("Lock commands sent:    " + lockCommands.get());
+        console.println("Server A-B bytes:      " + protocolBytes.get() + ", " +
+                protocolBytes.get() / Math.max(converged, 1) + " per converged change");
+        console.printf("Server CPU per client: %.1f ms per second%n",
+                serverCpu / 1e6 / clients / (elapsed / 1e9));
+        console.println("Pooled buffers:        " + BufferPool.outstanding() + " outstanding, " +
+                BufferPool.allocatedBytes() + " bytes pooled");
+
+        deleteDirectory(directoryA);
+        deleteDirectory(directoryB);
+        System.exit(0);
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadHarness harness = new LoadHarness();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-clients" -> harness.clients = Integer.parseInt(args[i + 1]);
+                case "-rate" -> harness.rate = Double.parseDouble(args[i + 1]);
+                case "-seconds" -> harness.seconds = Integer.parseInt(args[i + 1]);
+                case "-filesize" -> harness.fileSize = Integer.parseInt(args[i + 1]);
+                case "-lockprobability" -> harness.lockProbability = Double.parseDouble(args[i + 1]);
+                default -> {
+                    System.err.println("Unknown option " + args[i]);
+                    return;
+                }
+            }
+        }
+        harness.run();
+    }
+}
@@ -0,0 +1,101 @@
+package com.mimidots.lab3;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Leases of the locked files of server A, the only place the lock state of a file is kept.
+ * <p>
+ * Every file goes through the states unlocked -> locked -> draining -> unlocked, each transition a single atomic
+ * operation, so no server lock is needed and two clients can never both lock a file:
+ * <ul>
+ * <li>unlocked -> locked: putIfAbsent of a new lease, only one of concurrent lockers gets in</li>
+ * <li>locked -> draining: compare-and-set of the lease deadline to RELEASED (unlock or expiry, see FileLease)</li>
+ * <li>draining -> unlocked: remove of exactly that lease once its queued changes are applied</li>
+ * </ul>
+ * A draining file still counts as locked: changes keep being queued and it cannot be locked again until drained.
+ * <p>
+ * The table is split into STRIPES maps by a hash of the filename, so lock traffic on different files touches
+ * different maps and does not contend. Fencing tokens are drawn per stripe as well: the counter of the stripe in the
+ * high bits and the stripe index in the low bits, unique across stripes and growing for every file.
+ */
+public class LockTable {
+    //must be a power of two
+    static final int STRIPES = 64;
+    static final int STRIPE_BITS = Integer.numberOfTrailingZeros(STRIPES);
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    final ConcurrentHashMap<String, FileLease>[] stripes = new ConcurrentHashMap[STRIPES];
+
+    //last fencing token counter of each stripe. Starts at the launch time so tokens keep growing across restarts
+    final AtomicLong[] tokens = new AtomicLong[STRIPES];
+
+    public LockTable() {
+        long launched = System.currentTimeMillis();
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ConcurrentHashMap<>();
+            tokens[i] = new AtomicLong(launched);
+        }
+    }
+
+    static int stripeIndex(String filename) {
+        int hash = filename.hashCode();
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+
+    ConcurrentHashMap<String, FileLease> stripeOf(String filename) {
+        return stripes[stripeIndex(filename)];
+    }
+
+    /**
+     * @return lease of the file (locked or draining), null if unlocked
+     */
+    public FileLease get(String filename) {
+        return stripeOf(filename).get(filename);
+    }
+
+    public boolean isLocked(String filename) {
+        return stripeOf(filename).containsKey(filename);
+    }
+
+    /**
+     * unlocked -> locked, with a new lease. The fencing token is drawn once the lease is in the table: the next lease
+     * of the file can only get in after this one is drained, so it always gets a greater token, and a refused lock
+     * does not draw one.
+     *
+     * @param owner     connection of the client asking for the lock
+     * @param ttlMillis time a renewal extends the lease by
+     * @return the new lease, null if the file is already locked or draining
+     */
+    public FileLease tryLock(String filename, String owner, long ttlMillis) {
+        int stripe = stripeIndex(filename);
+        FileLease lease = new FileLease(filename, 0, owner, ttlMillis);
+        if (stripes[stripe].putIfAbsent(filename, lease) != null) {
+            return null;
+        }
+        lease.token = tokens[stripe].incrementAndGet() << STRIPE_BITS | stripe;
+        return lease;
+    }
+
+    /**
+     * draining -> unlocked, once the queued changes of the lease have been applied
+     */
+    public void drained(FileLease lease) {
+        stripeOf(lease.filename).remove(lease.filename, lease);
+    }
+
+    public int size() {
+        int size = 0;
+        for (ConcurrentHashMap<String, FileLease> stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    public void forEach(Consumer<FileLease> action) {
+        for (ConcurrentHashMap<String, FileLease> stripe : stripes) {
+            stripe.values().forEach(action);
+        }
+    }
+}
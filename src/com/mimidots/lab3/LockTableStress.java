@@ -0,0 +1,156 @@
+package com.mimidots.lab3;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrency stress test of the lock table.
+ * <p>
+ * Many threads lock, renew and unlock random files as fast as they can: each lock that is granted is renewed,
+ * released (locked -> draining) and drained (draining -> unlocked). Every file has a holder count that must never
+ * exceed 1, and the fencing token of every lease of a file must be greater than the previous one. The run fails if
+ * two threads ever hold the same file or a token goes back.
+ * <p>
+ * For comparison the same loop then runs against a single lock around a HashMap, the way locks were taken before.
+ * <p>
+ * Usage: LockTableStress [-threads 64] [-files 1024] [-seconds 5]
+ */
+public class LockTableStress {
+
+    interface Locks {
+        FileLease tryLock(String filename);
+
+        void unlock(FileLease lease);
+    }
+
+    /**
+     * Runs the lock loop on the given number of threads
+     *
+     * @return violations, i.e. times a file was granted to a second holder or with a token not above the last one
+     */
+    static long run(String name, Locks locks, String[] files, int threads, double seconds) throws InterruptedException {
+        AtomicIntegerArray holders = new AtomicIntegerArray(files.length);
+        AtomicLongArray lastTokens = new AtomicLongArray(files.length); //only written by the holder of the file
+        LongAdder granted = new LongAdder();
+        LongAdder refused = new LongAdder();
+        LongAdder violations = new LongAdder();
+        long end = System.nanoTime() + (long) (seconds * 1_000_000_000L);
+
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    long localGranted = 0;
+                    long localRefused = 0;
+                    while (System.nanoTime() < end) {
+                        //check the clock every 1024 operations only
+                        for (int i = 0; i < 1024; i++) {
+                            int file = random.nextInt(files.length);
+                            FileLease lease = locks.tryLock(files[file]);
+                            if (lease == null) {
+                                localRefused++;
+                                continue;
+                            }
+                            if (holders.incrementAndGet(file) != 1) {
+                                violations.increment();
+                            }
+                            if (lease.token <= lastTokens.get(file)) {
+                                violations.increment();
+                            }
+                            lastTokens.set(file, lease.token);
+                            lease.renew(lease.token, System.nanoTime());
+                            holders.decrementAndGet(file);
+                            lease.release();
+                            locks.unlock(lease);
+                            localGranted++;
+                        }
+                    }
+                    granted.add(localGranted);
+                    refused.add(localRefused);
+                }
+            });
+        }
+
+        long start = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long operations = granted.sum() + refused.sum();
+        System.out.printf("%-14s %8d threads %8d files %14.0f lock ops/s %12d granted %12d refused %6d violations%n",
+                name, threads, files.length, operations * 1e9 / elapsed, granted.sum(), refused.sum(),
+                violations.sum());
+        return violations.sum();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = 64;
+        int fileCount = 1024;
+        double seconds = 5;
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-threads" -> threads = Integer.parseInt(args[i + 1]);
+                case "-files" -> fileCount = Integer.parseInt(args[i + 1]);
+                case "-seconds" -> seconds = Double.parseDouble(args[i + 1]);
+                default -> {
+                    System.err.println("Unknown option " + args[i]);
+                    return;
+                }
+            }
+        }
+
+        String[] files = new String[fileCount];
+        for (int i = 0; i < fileCount; i++) {
+            files[i] = "dir-" + (i % 100) + "/Report-" + i + ".txt";
+        }
+
+        LockTable table = new LockTable();
+        long violations = run("LockTable", new Locks() {
+            @Override
+            public FileLease tryLock(String filename) {
+                return table.tryLock(filename, "stress", 30_000);
+            }
+
+            @Override
+            public void unlock(FileLease lease) {
+                table.drained(lease);
+            }
+        }, files, threads, seconds);
+
+        Map<String, FileLease> map = new HashMap<>();
+        violations += run("single lock", new Locks() {
+            long lastToken = 0;
+
+            @Override
+            public synchronized FileLease tryLock(String filename) {
+                if (map.containsKey(filename)) {
+                    return null;
+                }
+                FileLease lease = new FileLease(filename, ++lastToken, "stress", 30_000);
+                map.put(filename, lease);
+                return lease;
+            }
+
+            @Override
+            public synchronized void unlock(FileLease lease) {
+                map.remove(lease.filename, lease);
+            }
+        }, files, threads, seconds);
+
+        if (violations > 0 || table.size() > 0) {
+            System.err.println("FAILED: " + violations + " violations, " + table.size() + " files left locked");
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package com.mimidots.lab3;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous, leveled logger of the servers.
+ * <p>
+ * Callers never write to the console: a log call only checks the level and, if enabled, claims a slot of a
+ * pre-allocated ring buffer with one compare-and-set and stores the format and its arguments there.
+ * A background thread formats the messages ("{}" is replaced by the next argument) and writes them out,
+ * so threads logging at the same time do not wait on the PrintStream lock or on the console.
+ * <p>
+ * Calls below the current level return right after a volatile read. Fixed arity overloads avoid a varargs array.
+ * When the buffer is full (console much slower than the servers) messages are dropped and counted, never waited on.
+ * <p>
+ * The level is INFO unless set with -Dlab3.log=debug|info|warn|error. Per frame and per file messages are DEBUG.
+ */
+public class Log {
+
+    static enum LEVEL {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    //slots of the ring buffer, must be a power of two
+    static final int CAPACITY = 1 << 14;
+
+    static volatile LEVEL level = LEVEL.valueOf(System.getProperty("lab3.log", "info").toUpperCase());
+
+    /**
+     * A slot of the ring buffer. Its sequence tells producers and the drain thread whose turn it is:
+     * equal to the slot position - free for the producer of that position,
+     * position + 1 - message published, waiting for the drain thread.
+     */
+    static final class Entry {
+        final AtomicLong sequence;
+        LEVEL level;
+        String format;
+        Object argument1;
+        Object argument2;
+        Object argument3;
+        Throwable throwable;
+
+        Entry(long sequence) {
+            this.sequence = new AtomicLong(sequence);
+        }
+    }
+
+    static final Entry[] entries = new Entry[CAPACITY];
+    static final AtomicLong tail = new AtomicLong(); //next position to claim
+    static long head = 0; //next position to drain, guarded by the class lock
+    static final AtomicLong dropped = new AtomicLong();
+    static volatile Thread drainer;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            entries[i] = new Entry(i);
+        }
+        drainer = new Thread(Log::drain, "log-drain");
+        drainer.setDaemon(true);
+        drainer.start();
+        //messages logged right before exit still get written
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush));
+    }
+
+    public static boolean isEnabled(LEVEL messageLevel) {
+        return messageLevel.compareTo(level) >= 0;
+    }
+
+    public static boolean isDebugEnabled() {
+        return LEVEL.DEBUG.compareTo(level) >= 0;
+    }
+
+    static void publish(LEVEL messageLevel, String format, Object argument1, Object argument2, Object argument3,
+                        Throwable throwable) {
+        long position;
+        Entry entry;
+        while (true) {
+            position = tail.get();
+            entry = entries[(int) position & (CAPACITY - 1)];
+            long sequence = entry.sequence.get();
+            if (sequence < position) { //the slot still holds a message of the previous lap
+                dropped.incrementAndGet();
+                return;
+            }
+            if (sequence == position && tail.compareAndSet(position, position + 1)) {
+                break;
+            }
+        }
+
+        entry.level = messageLevel;
+        entry.format = format;
+        entry.argument1 = argument1;
+        entry.argument2 = argument2;
+        entry.argument3 = argument3;
+        entry.throwable = throwable;
+        entry.sequence.set(position + 1);
+
+        LockSupport.unpark(drainer);
+    }
+
+    static String format(String format, Object argument1, Object argument2, Object argument3) {
+        StringBuilder builder = new StringBuilder(format.length() + 32);
+        Object[] arguments = {argument1, argument2, argument3};
+        int next = 0;
+        int start = 0;
+        int placeholder;
+        while (next < arguments.length && (placeholder = format.indexOf("{}", start)) >= 0) {
+            builder.append(format, start, placeholder).append(arguments[next++]);
+            start = placeholder + 2;
+        }
+        return builder.append(format, start, format.length()).toString();
+    }
+
+    /**
+     * Writes out every published message
+     *
+     * @return true if there was anything to write
+     */
+    static synchronized boolean drainPublished() {
+        boolean written = false;
+        while (true) {
+            Entry entry = entries[(int) head & (CAPACITY - 1)];
+            if (entry.sequence.get() != head + 1) {
+                break;
+            }
+
+            //resolved on every message, the console may be redirected (benchmarks, load tests)
+            PrintStream stream = entry.level.compareTo(LEVEL.WARN) >= 0 ? System.err : System.out;
+            stream.println(format(entry.format, entry.argument1, entry.argument2, entry.argument3));
+            if (entry.throwable != null) {
+                entry.throwable.printStackTrace(stream);
+            }
+
+            //release the references and hand the slot to the producer of the next lap
+            entry.format = null;
+            entry.argument1 = entry.argument2 = entry.argument3 = null;
+            entry.throwable = null;
+            entry.sequence.set(head + CAPACITY);
+            head++;
+            written = true;
+        }
+
+        long lost = dropped.getAndSet(0);
+        if (lost > 0) {
+            System.err.println(lost + " log messages dropped, the log buffer was full");
+        }
+        return written;
+    }
+
+    static void drain() {
+        while (true) {
+            if (!drainPublished()) {
+                LockSupport.parkNanos(10_000_000L);
+            }
+        }
+    }
+
+    /**
+     * Writes out the messages published so far from the calling thread
+     */
+    public static void flush() {
+        drainPublished();
+        System.out.flush();
+        System.err.flush();
+    }
+
+    public static void debug(String format) {
+        if (isDebugEnabled()) {
+            publish(LEVEL.DEBUG, format, null, null, null, null);
+        }
+    }
+
+    public static void debug(String format, Object argument1) {
+        if (isDebugEnabled()) {
+            publish(LEVEL.DEBUG, format, argument1, null, null, null);
+        }
+    }
+
+    public static void debug(String format, Object argument1, Object argument2) {
+        if (isDebugEnabled()) {
+            publish(LEVEL.DEBUG, format, argument1, argument2, null, null);
+        }
+    }
+
+    public static void debug(String format, Object argument1, Object argument2, Object argument3) {
+        if (isDebugEnabled()) {
+            publish(LEVEL.DEBUG, format, argument1, argument2, argument3, null);
+        }
+    }
+
+    public static void info(String format) {
+        if (isEnabled(LEVEL.INFO)) {
+            publish(LEVEL.INFO, format, null, null, null, null);
+        }
+    }
+
+    public static void info(String format, Object argument1) {
+        if (isEnabled(LEVEL.INFO)) {
+            publish(LEVEL.INFO, format, argument1, null, null, null);
+        }
+    }
+
+    public static void info(String format, Object argument1, Object argument2) {
+        if (isEnabled(LEVEL.INFO)) {
+            publish(LEVEL.INFO, format, argument1, argument2, null, null);
+        }
+    }
+
+    public static void info(String format, Object argument1, Object argument2, Object argument3) {
+        if (isEnabled(LEVEL.INFO)) {
+            publish(LEVEL.INFO, format, argument1, argument2, argument3, null);
+        }
+    }
+
+    public static void warn(String format) {
+        if (isEnabled(LEVEL.WARN)) {
+            publish(LEVEL.WARN, format, null, null, null, null);
+        }
+    }
+
+    public static void warn(String format, Object argument1) {
+        if (isEnabled(LEVEL.WARN)) {
+            publish(LEVEL.WARN, format, argument1, null, null, null);
+        }
+    }
+
+    public static void warn(String format, Object argument1, Object argument2) {
+        if (isEnabled(LEVEL.WARN)) {
+            publish(LEVEL.WARN, format, argument1, argument2, null, null);
+        }
+    }
+
+    public static void warn(String format, Object argument1, Object argument2, Object argument3) {
+        if (isEnabled(LEVEL.WARN)) {
+            publish(LEVEL.WARN, format, argument1, argument2, argument3, null);
+        }
+    }
+
+    public static void error(String format, Throwable throwable) {
+        if (isEnabled(LEVEL.ERROR)) {
+            publish(LEVEL.ERROR, format, null, null, null, throwable);
+        }
+    }
+
+    public static void error(String format, Object argument1, Throwable throwable) {
+        if (isEnabled(LEVEL.ERROR)) {
+            publish(LEVEL.ERROR, format, argument1, null, null, throwable);
+        }
+    }
+}
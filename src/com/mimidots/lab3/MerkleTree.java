@@ -0,0 +1,118 @@
+package com.mimidots.lab3;
+
+import java.util.Map;
+
+/**
+ * Hash tree over a directory inventory, used to find which parts of two inventories differ without sending them.
+ * <p>
+ * Files are spread over 2^DEPTH buckets by a hash of their name. The hash of a bucket (leaf) is the sum of the hashes
+ * of its entries (name, size and timestamp), so it does not depend on order. Every other node hashes its two children.
+ * Nodes are numbered like a binary heap: 1 is the root, node n has children 2n and 2n+1, the leaf of bucket b is
+ * node LEAVES + b.
+ * <p>
+ * Two servers with the same root hash have the same inventory. Otherwise only the children of differing nodes need
+ * to be compared, down to the differing buckets, so a single change costs a few hash exchanges of
+ * 2^LEVELS_PER_EXCHANGE hashes each (one per LEVELS_PER_EXCHANGE levels) and one bucket listing.
+ * <p>
+ * Only the hashes are kept (a fixed 2^(DEPTH+1) longs), not the entries of the buckets, so the tree takes the same
+ * memory whatever the number of files.
+ */
+public class MerkleTree {
+    static final int DEPTH = 16;
+    static final int LEAVES = 1 << DEPTH;
+
+    //levels descended per hash exchange when comparing trees, DEPTH must be a multiple of it
+    static final int LEVELS_PER_EXCHANGE = 4;
+
+    //node hashes, index 0 unused
+    final long[] nodes = new long[2 * LEAVES];
+
+    public MerkleTree() {
+    }
+
+    /**
+     * @param inventory map with filename as key, [file-size,file-timestamp,...] as value
+     */
+    public MerkleTree(Map<String, Long[]> inventory) {
+        for (Map.Entry<String, Long[]> entry : inventory.entrySet()) {
+            add(entry.getKey(), entry.getValue());
+        }
+        rehash();
+    }
+
+    /**
+     * Adds a file to the hash of its bucket. The hashes above the buckets are only updated by rehash
+     */
+    public void add(String filename, Long[] metadata) {
+        nodes[LEAVES + bucketOf(filename)] += entryHash(filename, metadata);
+    }
+
+    /**
+     * Computes every hash above the buckets from the bucket hashes
+     */
+    public void rehash() {
+        for (int node = LEAVES - 1; node > 0; node--) {
+            nodes[node] = combine(nodes[2 * node], nodes[2 * node + 1]);
+        }
+    }
+
+    /**
+     * Final mix of splitmix64, spreads every input bit over the whole hash
+     */
+    static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+
+    /**
+     * 64 bit FNV-1a of the filename characters. Independent of the JVM, so both servers agree.
+     */
+    static long nameHash(String filename) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < filename.length(); i++) {
+            hash ^= filename.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    static long entryHash(String filename, Long[] metadata) {
+        return mix(nameHash(filename) ^ mix(metadata[0]) ^ mix(metadata[1] * 31));
+    }
+
+    static long combine(long left, long right) {
+        return mix(left * 0x9e3779b97f4a7c15L + right);
+    }
+
+    public static int bucketOf(String filename) {
+        return (int) (mix(nameHash(filename)) >>> (64 - DEPTH));
+    }
+
+    public static boolean isLeaf(int node) {
+        return node >= LEAVES;
+    }
+
+    public long hash(int node) {
+        return nodes[node];
+    }
+
+    /**
+     * Replaces the entries of a bucket and updates the hashes up to the root
+     *
+     * @param bucket  bucket index
+     * @param entries new entries of the bucket, all of them must belong to the bucket
+     */
+    public void replaceBucket(int bucket, Map<String, Long[]> entries) {
+        long hash = 0;
+        for (Map.Entry<String, Long[]> entry : entries.entrySet()) {
+            hash += entryHash(entry.getKey(), entry.getValue());
+        }
+
+        int node = LEAVES + bucket;
+        nodes[node] = hash;
+        for (node >>= 1; node > 0; node >>= 1) {
+            nodes[node] = combine(nodes[2 * node], nodes[2 * node + 1]);
+        }
+    }
+}
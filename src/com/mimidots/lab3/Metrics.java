@@ -0,0 +1,333 @@
+package com.mimidots.lab3;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.*;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of the runtime metrics of a server: counters, gauges and latency/size histograms.
+ * <p>
+ * Metrics are created once (usually into fields) and recording into them does not allocate or lock:
+ * counters are LongAdders and histograms increment a slot of a fixed AtomicLongArray.
+ * Values are exposed over JMX (one MBean per registry, one attribute per value) and as plain text
+ * (one "name value" line each) over HTTP at /metrics.
+ */
+public class Metrics {
+
+    /**
+     * Monotonic count, e.g. requests served or bytes sent
+     */
+    public static class Counter {
+        final LongAdder adder = new LongAdder();
+
+        public void increment() {
+            adder.increment();
+        }
+
+        public void add(long value) {
+            adder.add(value);
+        }
+
+        public long get() {
+            return adder.sum();
+        }
+    }
+
+    /**
+     * Distribution of values in log-linear buckets (HdrHistogram style): 16 linear sub-buckets per power of two,
+     * so every recorded value is known within ~6%. Covers the whole positive long range in 1024 slots.
+     * The largest value is kept exactly.
+     */
+    public static class Histogram {
+        static final int SUB_BITS = 4;
+        static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+        final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+        final LongAdder count = new LongAdder();
+        final LongAdder sum = new LongAdder();
+        final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        static int slotOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) Math.max(value, 0);
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        static long lowestValueOf(int slot) {
+            if (slot < SUB_BUCKETS) {
+                return slot;
+            }
+            int exponent = slot / SUB_BUCKETS + SUB_BITS - 1;
+            return (long) (SUB_BUCKETS + slot % SUB_BUCKETS) << (exponent - SUB_BITS);
+        }
+
+        public void record(long value) {
+            counts.incrementAndGet(slotOf(value));
+            count.increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        /**
+         * Records the time elapsed since a System.nanoTime value
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        /**
+         * @return largest value recorded, 0 if nothing was recorded
+         */
+        public long max() {
+            return max.get();
+        }
+
+        /**
+         * @param quantile between 0 and 1
+         * @return lowest value of the slot holding the quantile, 0 if nothing was recorded
+         */
+        public long quantile(double quantile) {
+            long total = 0;
+            for (int slot = 0; slot < counts.length(); slot++) {
+                total += counts.get(slot);
+            }
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int slot = 0; slot < counts.length(); slot++) {
+                seen += counts.get(slot);
+                if (seen >= rank && seen > 0) {
+                    return lowestValueOf(slot);
+                }
+            }
+            return 0;
+        }
+    }
+
+    //every value by name, histograms appear as several values (_count, _sum, _p50, _p90, _p99, _max)
+    final ConcurrentSkipListMap<String, Object> metrics = new ConcurrentSkipListMap<>();
+
+    public Counter counter(String name) {
+        return (Counter) metrics.computeIfAbsent(name, key -> new Counter());
+    }
+
+    public Histogram histogram(String name) {
+        return (Histogram) metrics.computeIfAbsent(name, key -> new Histogram());
+    }
+
+    /**
+     * @param supplier read when the metrics are exported
+     */
+    public void gauge(String name, LongSupplier supplier) {
+        metrics.put(name, supplier);
+    }
+
+    /**
+     * Removes a metric, e.g. the counters of a closed connection
+     */
+    public void remove(String name) {
+        metrics.remove(name);
+    }
+
+    /**
+     * @return every current value, histograms expanded
+     */
+    public Map<String, Long> values() {
+        Map<String, Long> values = new ConcurrentSkipListMap<>();
+        for (Map.Entry<String, Object> metric : metrics.entrySet()) {
+            String name = metric.getKey();
+            Object value = metric.getValue();
+            if (value instanceof Counter) {
+                values.put(name, ((Counter) value).get());
+            } else if (value instanceof LongSupplier) {
+                values.put(name, ((LongSupplier) value).getAsLong());
+            } else if (value instanceof Histogram) {
+                Histogram histogram = (Histogram) value;
+                values.put(name + "_count", histogram.count());
+                values.put(name + "_sum", histogram.sum.sum());
+                values.put(name + "_p50", histogram.quantile(0.5));
+                values.put(name + "_p90", histogram.quantile(0.9));
+                values.put(name + "_p99", histogram.quantile(0.99));
+                values.put(name + "_max", histogram.max());
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @return one "name value" line per value
+     */
+    public String text() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Long> value : values().entrySet()) {
+            builder.append(value.getKey()).append(' ').append(value.getValue()).append('\n');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Serves the text format at http://host:port/metrics
+     */
+    public void startHttpServer(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = text().getBytes();
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream stream = exchange.getResponseBody()) {
+                stream.write(body);
+            }
+        });
+        server.start();
+        Log.info("Metrics available at http://localhost:{}/metrics", port);
+    }
+
+    /**
+     * Registers the values as attributes of the MBean com.mimidots.lab3:type=Metrics,name=[name]
+     */
+    public void registerMBean(String name) {
+        DynamicMBean bean = new DynamicMBean() {
+            @Override
+            public Object getAttribute(String attribute) throws AttributeNotFoundException {
+                Long value = values().get(attribute);
+                if (value == null) {
+                    throw new AttributeNotFoundException(attribute);
+                }
+                return value;
+            }
+
+            @Override
+            public AttributeList getAttributes(String[] attributes) {
+                Map<String, Long> values = values();
+                AttributeList list = new AttributeList();
+                for (String attribute : attributes) {
+                    if (values.containsKey(attribute)) {
+                        list.add(new Attribute(attribute, values.get(attribute)));
+                    }
+                }
+                return list;
+            }
+
+            @Override
+            public MBeanInfo getMBeanInfo() {
+                Map<String, Long> values = values();
+                MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+                int i = 0;
+                for (String attribute : values.keySet()) {
+                    attributes[i++] = new MBeanAttributeInfo(attribute, "long", attribute, true, false, false);
+                }
+                return new MBeanInfo(Metrics.class.getName(), "Server metrics", attributes, null, null, null);
+            }
+
+            @Override
+            public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+                throw new AttributeNotFoundException("Metrics are read only");
+            }
+
+            @Override
+            public AttributeList setAttributes(AttributeList attributes) {
+                return new AttributeList();
+            }
+
+            @Override
+            public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException {
+                throw new MBeanException(new UnsupportedOperationException(actionName));
+            }
+        };
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(bean,
+                    new ObjectName("com.mimidots.lab3:type=Metrics,name=" + name));
+        } catch (JMException e) {
+            //e.g. a second server of the same kind in this JVM
+            Log.warn("Metrics MBean not registered: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * @return a remote address usable in metric names, e.g. 127_0_0_1_51234
+     */
+    public static String connectionName(SocketAddress address) {
+        return String.valueOf(address).replaceAll("[^A-Za-z0-9]+", "_").replaceAll("^_|_$", "");
+    }
+
+    /**
+     * Channel counting the bytes read into a counter, e.g. file bodies read past the counting stream of a connection
+     */
+    public static class CountingChannel implements ReadableByteChannel {
+        final ReadableByteChannel channel;
+        final Counter counter;
+
+        public CountingChannel(ReadableByteChannel channel, Counter counter) {
+            this.channel = channel;
+            this.counter = counter;
+        }
+
+        @Override
+        public int read(ByteBuffer buffer) throws IOException {
+            int read = channel.read(buffer);
+            if (read > 0) {
+                counter.add(read);
+            }
+            return read;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Input stream counting the bytes read into a counter
+     */
+    public static class CountingInputStream extends FilterInputStream {
+        final Counter counter;
+
+        public CountingInputStream(InputStream in, Counter counter) {
+            super(in);
+            this.counter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                counter.increment();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                counter.add(read);
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.mimidots.lab3;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A downstream server B that mirrors server A directory.
+ * <p>
+ * Each replica has its own queue of serialized frames and its own sender thread, so the same frame (serialized once)
+ * is streamed to all replicas in parallel and a slow replica only delays itself. File uploads are queued as
+ * references and the file is streamed from the directory when sent.
+ * If a replica falls too far behind, its queue is dropped and the replica is brought up to date from the directory.
+ */
+public class ReplicaLink implements Runnable {
+    //maximum bytes waiting for a replica before its queue is dropped in favour of a full resynchronization
+    static final long MAX_PENDING_BYTES = 256L * 1024 * 1024;
+
+    final String address;
+    final int port;
+    final ServerA server;
+    final String directory;
+
+    //frames waiting to be sent to this replica: serialized frames (byte[], shared with the other replicas, never
+    //modified) or files to upload from the directory (Object[]{filename, size})
+    final LinkedBlockingDeque<Object> pendingFrames = new LinkedBlockingDeque<>();
+    final AtomicLong pendingBytes = new AtomicLong();
+
+    //progress of the replica
+    final AtomicLong framesQueued = new AtomicLong();
+    final AtomicLong framesSent = new AtomicLong();
+    final AtomicLong bytesSent = new AtomicLong();
+    final AtomicLong resyncs = new AtomicLong();
+
+    //checkpoints [offset, prefix-hash] of the uploads the replica did not finish, asked for by each resynchronization
+    Map<String, Object[]> resumeOffsets = new HashMap<>();
+
+    volatile boolean connected = false;
+    volatile boolean resyncRequired = true; //a new connection always starts with a full resynchronization
+
+    public ReplicaLink(String address, int port, ServerA server, String directory) {
+        this.address = address;
+        this.port = port;
+        this.server = server;
+        this.directory = directory;
+    }
+
+    /**
+     * Queues a frame for this replica. Never blocks the caller.
+     *
+     * @param frame serialized frame
+     */
+    public void enqueue(byte[] frame) {
+        offer(frame, frame.length);
+    }
+
+    /**
+     * Queues the upload of a file of the directory for this replica. Never blocks the caller.
+     *
+     * @param filename file relative to the directory
+     * @param size     current size of the file
+     */
+    public void enqueueFile(String filename, long size) {
+        offer(new Object[]{filename, size}, size);
+    }
+
+    void offer(Object entry, long bytes) {
+        if (resyncRequired) {
+            //the next resynchronization reads the directory after this change, nothing to queue
+            return;
+        }
+
+        if (pendingBytes.addAndGet(bytes) > MAX_PENDING_BYTES) {
+            Log.warn("Replica {}:{} is too far behind. Scheduling resynchronization", address, port);
+            resyncRequired = true;
+            return;
+        }
+        pendingFrames.add(entry);
+        framesQueued.incrementAndGet();
+    }
+
+    /**
+     * @return human readable progress of the replica
+     */
+    public String status() {
+        return address + ":" + port + (connected ? " connected" : " disconnected") +
+                " sent " + framesSent.get() + "/" + framesQueued.get() + " frames (" + bytesSent.get() + " bytes)" +
+                " pending " + pendingFrames.size() + " frames (" + pendingBytes.get() + " bytes)" +
+                " resyncs " + resyncs.get();
+    }
+
+    /**
+     * Brings the replica up to date with the directory: uploads missing or different files and deletes extra ones
+     */
+    void resync(DataInputStream inStream, FrameWriter outStream) throws IOException {
+        //drop the queue before reading the directory, any change queued from now on is newer than what is read below
+        pendingFrames.clear();
+        pendingBytes.set(0);
+        resyncRequired = false;
+        resyncs.incrementAndGet();
+
+        Log.info("Resynchronizing replica {}:{}", address, port);
+        resumeOffsets = server.getResumeOffsets(inStream, outStream);
+        TreeMap<String, Long[]> replicaInventory = server.getServerBInventory(inStream, outStream);
+        //a shard only mirrors its own files, the other files of the replica belong to the other shards
+        server.filterOwnedFiles(replicaInventory);
+        TreeMap<String, Long[]> inventory = server.filterOwnedFiles(server.listDirectoryInventory(directory));
+
+        for (String filename : inventory.keySet()) {
+            Long[] meta = inventory.get(filename);
+            Long[] replicaMeta = replicaInventory.get(filename);
+            if (replicaMeta == null || !replicaMeta[0].equals(meta[0]) || !replicaMeta[1].equals(meta[1])) {
+                sendFile(outStream, filename);
+            }
+        }
+
+        for (String filename : replicaInventory.keySet()) {
+            if (!inventory.containsKey(filename)) {
+                send(outStream, server.serializeData(ServerA.COMMAND.FILEDELETE.name(), filename.getBytes(), "", 0L));
+            }
+        }
+    }
+
+    void send(FrameWriter outStream, byte[] frame) throws IOException {
+        outStream.write(frame);
+        framesSent.incrementAndGet();
+        bytesSent.addAndGet(frame.length);
+    }
+
+    /**
+     * Uploads the current version of a file, from the checkpoint of an interrupted upload on if the replica has one
+     * that matches. A file deleted in the meantime is skipped, its FILEDELETE is queued.
+     */
+    void sendFile(FrameWriter outStream, String filename) throws IOException {
+        String path = directory + filename;
+        if (!new File(path).isFile()) {
+            return;
+        }
+        long offset = FileTransfer.resumableOffset(path, resumeOffsets.remove(filename));
+        long size = outStream.writeFileFrame(offset > 0 ? ServerA.COMMAND.FILERESUME.name() :
+                ServerA.COMMAND.FILEUPLOAD.name(), path, filename, server.getFileTimestamp(path), offset);
+        if (offset > 0) {
+            Log.info("Resuming upload of {} to replica {} at {}", filename, address + ":" + port, offset);
+            server.transfersResumed.increment();
+            server.resumedBytes.add(offset);
+        }
+        framesSent.incrementAndGet();
+        bytesSent.addAndGet(size - offset);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            Socket socket = null;
+            try {
+                socket = SocketChannel.open(new InetSocketAddress(address, port)).socket();
+                FrameWriter outStream = new FrameWriter(socket.getChannel(), server.metrics,
+                        "replica_" + Metrics.connectionName(socket.getRemoteSocketAddress()));
+                DataInputStream inStream = new DataInputStream(socket.getInputStream());
+                connected = true;
+                Log.info("Connected to replica {}:{}", address, port);
+
+                while (true) {
+                    if (resyncRequired) {
+                        resync(inStream, outStream);
+                    }
+
+                    Object entry = pendingFrames.pollFirst(1, TimeUnit.SECONDS);
+                    if (entry instanceof byte[]) {
+                        pendingBytes.addAndGet(-((byte[]) entry).length);
+                        send(outStream, (byte[]) entry);
+                    } else if (entry != null) {
+                        Object[] file = (Object[]) entry;
+                        pendingBytes.addAndGet(-(Long) file[1]);
+                        sendFile(outStream, (String) file[0]);
+                    }
+                }
+            } catch (IOException e) {
+                Log.warn("Replica {}:{} failed: {}", address, port, e.getMessage());
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                return;
+            } finally {
+                connected = false;
+                resyncRequired = true; //changes made while disconnected are picked up by the next resynchronization
+                if (socket != null) {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+
+            //retry later, the next connection starts with a resynchronization
+            try {
+                Thread.sleep(5000);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package com.mimidots.lab3;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Front end of a sharded server A cluster.
+ * <p>
+ * Every shard is a server A process launched with {@code -shard <index>/<count>}, it synchronizes and locks only
+ * the files whose name hashes to its index. The router connects to each shard as a client, merges the shard
+ * listings into a single listing for the connected clients and forwards LOCKFILE/UNLOCKFILE/RENEWLOCK to the owning
+ * shard. The lease answers of a shard go back to the client that asked for the lock.
+ */
+public class Router {
+    //Last listing received from each shard <shard-index, listing>
+    ConcurrentHashMap<Integer, TreeMap<String, Long[]>> shardListings = new ConcurrentHashMap<>();
+
+    //Output streams to the shards <shard-index, stream>, used to forward client commands
+    ConcurrentHashMap<Integer, FrameWriter> shardOutputStreams = new ConcurrentHashMap<>();
+
+    //Client that asked for the lock of a file <filename, client stream>, the shard LEASE answers are passed to it
+    ConcurrentHashMap<String, FrameWriter> leaseClients = new ConcurrentHashMap<>();
+
+    //Merged listing of all shards and its serialized form, rebuilt whenever a shard sends a listing
+    volatile TreeMap<String, Long[]> mergedListing = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    volatile byte[] mergedData = new byte[0];
+    volatile long mergedVersion = 0;
+
+    final List<String[]> shards;
+
+    //reused for the frame and listing (de)serialization, identical to what clients and shards use
+    final ServerA protocol = new ServerA();
+
+    //bytes and frames written, not exported
+    final Metrics metrics = new Metrics();
+
+    public Router(List<String[]> shards) {
+        this.shards = shards;
+    }
+
+    /**
+     * Merges the listings of all shards. Shards own disjoint sets of files, so merging is a plain union.
+     */
+    synchronized void mergeListings() {
+        TreeMap<String, Long[]> merged = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (TreeMap<String, Long[]> listing : this.shardListings.values()) {
+            merged.putAll(listing);
+        }
+        this.mergedData = protocol.serializeFiles(merged);
+        this.mergedListing = merged;
+        this.mergedVersion++;
+        this.notifyAll();
+    }
+
+    /**
+     * Keeps a connection to a shard open and records every listing it sends
+     *
+     * @param shardIndex index of the shard
+     */
+    public void shardReader(int shardIndex) {
+        String address = shards.get(shardIndex)[0];
+        int port = Integer.parseInt(shards.get(shardIndex)[1]);
+
+        while (true) {
+            Socket socket = null;
+            try {
+                socket = SocketChannel.open(new InetSocketAddress(address, port)).socket();
+                Log.info("Connected to shard {} at {}:{}", shardIndex, address, port);
+                DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+                this.shardOutputStreams.put(shardIndex, new FrameWriter(socket.getChannel(), this.metrics,
+                        "shard_" + shardIndex));
+
+                while (true) {
+                    //listings are sent as SIZE\nDATA, lease answers as LEASE:token:ttl:filename\n
+                    String line = Client.readLine(inputStream);
+                    if (line.startsWith("LEASE:")) {
+                        this.passLease(line);
+                        continue;
+                    }
+                    byte[] data = inputStream.readNBytes(Integer.parseInt(line));
+
+                    //case insensitive, the order clients number the files in
+                    TreeMap<String, Long[]> listing = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+                    ListingCodec.decode(data, listing);
+                    this.shardListings.put(shardIndex, listing);
+                    this.mergeListings();
+                }
+            } catch (IOException e) {
+                Log.warn("Shard {} connection failed: {}", shardIndex, e.getMessage());
+            } finally {
+                this.shardOutputStreams.remove(shardIndex);
+                if (socket != null) {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+
+            //retry later
+            try {
+                Thread.sleep(5000);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Passes a LEASE answer of a shard to the client that asked for the lock
+     */
+    void passLease(String line) throws IOException {
+        String[] lease = line.split(":", 4);
+        FrameWriter clientStream = lease[1].equals("0") ? this.leaseClients.remove(lease[3])
+                : this.leaseClients.get(lease[3]);
+        if (clientStream == null) {
+            Log.debug("No client waiting for the lease of {}", lease[3]);
+            return;
+        }
+        clientStream.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return filename at an index of the merged listing, null if out of range
+     */
+    String filenameAt(int index) {
+        TreeMap<String, Long[]> merged = this.mergedListing;
+        if (index < 0 || index >= merged.size()) {
+            Log.warn("File index out of range");
+            return null;
+        }
+        return new ArrayList<>(merged.keySet()).get(index);
+    }
+
+    /**
+     * Forwards a lock request to the shard owning the file.
+     * The shard expects an index into its own listing, the filename and fencing token are passed on as they are.
+     *
+     * @param command  LOCKFILE, UNLOCKFILE or RENEWLOCK
+     * @param filename file the command is about
+     * @param leased   true if the client named the file (leased filename), false if it gave an index
+     * @param token    fencing token of the lease, 0 if none
+     */
+    void forward(String command, String filename, boolean leased, long token) throws IOException {
+        int shardIndex = ServerA.shardOf(filename, this.shards.size());
+
+        TreeMap<String, Long[]> shardListing = this.shardListings.get(shardIndex);
+        FrameWriter shardStream = this.shardOutputStreams.get(shardIndex);
+        if (shardListing == null || shardStream == null) {
+            Log.warn("Shard {} owning {} is not connected", shardIndex, filename);
+            return;
+        }
+
+        int shardFileIndex = shardListing.headMap(filename).size();
+        Log.debug("Forwarding {} of {} to shard " + shardIndex + " as index {}", command, filename, shardFileIndex);
+        shardStream.writeFrame(command, Integer.toString(shardFileIndex).getBytes(), leased ? filename : "", token);
+    }
+
+    public void clientHandler(Socket socket) {
+        FrameWriter clientOutputStream = null;
+        String connection = "client_" + Metrics.connectionName(socket.getRemoteSocketAddress());
+        DataInputStream clientInputStream = null;
+        try {
+            clientOutputStream = new FrameWriter(socket.getChannel(), this.metrics, connection);
+            clientInputStream = new DataInputStream(socket.getInputStream());
+
+            long sentVersion = -1;
+            while (true) {
+
+                //1) forward any client command to the owning shard
+                if (clientInputStream.available() > 0) {
+                    TreeMap<String, Object> res = protocol.deserializeData(clientInputStream);
+                    String command = (String) res.getOrDefault("command", "");
+
+                    String leasedFile = (String) res.getOrDefault("filename", "");
+                    long token = (Long) res.getOrDefault("timestamp", 0L);
+
+                    if (command.equals(ServerA.COMMAND.RENEWLOCK.name())
+                            || (command.equals(ServerA.COMMAND.UNLOCKFILE.name()) && !leasedFile.isEmpty())) {
+                        //lease holders name the file
+                        this.forward(command, leasedFile, true, token);
+                    } else if (command.equals(ServerA.COMMAND.UNLOCKFILE.name())) {
+                        //the shards see every lease as held by the router, an unlock without the lease would
+                        //release any client's lock
+                        Log.warn("Unlock by index without a fencing token from {} rejected", connection);
+                    } else if (command.equals(ServerA.COMMAND.LOCKFILE.name())) {
+                        String filename = this.filenameAt(Integer.parseInt(new String((byte[]) res.get("data"))));
+                        if (filename != null) {
+                            this.leaseClients.put(filename, clientOutputStream);
+                            Log.info("Forwarding {} of {}", command, filename);
+                            this.forward(command, filename, false, token);
+                        }
+                    }
+                }
+
+                //2) send the merged listing whenever a shard has sent a new one
+                if (sentVersion != this.mergedVersion) {
+                    byte[] clientData;
+                    synchronized (this) {
+                        sentVersion = this.mergedVersion;
+                        clientData = this.mergedData;
+                    }
+                    //lease answers are written by the shard readers, each frame write is atomic
+                    clientOutputStream.writeSized(clientData);
+                }
+
+                synchronized (this) {
+                    if (sentVersion == this.mergedVersion) {
+                        this.wait(200);
+                    }
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            Log.error("Client connection closed", e);
+        } finally {
+            //its leases are left to expire
+            this.leaseClients.values().removeAll(Collections.singleton(clientOutputStream));
+            this.metrics.remove(connection + "_bytes_out");
+            try {
+                if (clientInputStream != null) {
+                    clientInputStream.close();
+                }
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        int portRouter = 8080; //port the clients connect to
+
+        //Router <port> <shard-0-address:port> <shard-1-address:port> ...
+        if (args.length < 2) {
+            System.err.println("Usage: Router <port> <shard-address:port> [<shard-address:port> ...]");
+            System.exit(1);
+        }
+        portRouter = Integer.parseInt(args[0]);
+
+        List<String[]> shards = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            int separator = args[i].lastIndexOf(':');
+            shards.add(new String[]{args[i].substring(0, separator), args[i].substring(separator + 1)});
+        }
+
+        Router router = new Router(shards);
+        for (int i = 0; i < shards.size(); i++) {
+            final int shardIndex = i;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    router.shardReader(shardIndex);
+                }
+            }).start();
+        }
+
+        ServerSocket serverSocket = null;
+        try {
+            //accepted sockets have a channel for the frame writers
+            serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(portRouter)).socket();
+            Log.info("Router started for {} shards. Ready to accept connections", shards.size());
+
+            while (true) {
+                final Socket clientSocket = serverSocket.accept();
+                Log.info("New client connected to router with address: {}", clientSocket.getRemoteSocketAddress());
+
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        router.clientHandler(clientSocket);
+                    }
+                }).start();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            Log.info("Cleanup");
+            try {
+                if (serverSocket != null) {
+                    serverSocket.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
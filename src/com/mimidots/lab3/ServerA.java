@@ -1,20 +1,157 @@
 package com.mimidots.lab3;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ServerA {
-    //Last synchronized file list <filename,[size,last-modified,locked]> - global to ease by different threads
-    ConcurrentHashMap<String, Long[]> lastSyncedFileList = new ConcurrentHashMap<>();
-
-    // LOCKED Files <fileIndex,Changes[action(delete,create),filename,timestamp,file-data]> -global to ease client threads utilization
-    ConcurrentHashMap<Integer, LinkedBlockingDeque<Object[]>> lockedFiles = new ConcurrentHashMap<>();
+    //Last synchronized file list <filename,[size,last-modified,locked]> - global to ease by different threads.
+    //Sorted by filename so it can be compared with the inventories in a single pass
+    ConcurrentSkipListMap<String, Long[]> lastSyncedFileList = new ConcurrentSkipListMap<>();
+
+    // LOCKED Files <filename,lease> - the lease holds the changes queued while the file is locked.
+    // The lock flag of the listings is taken from here, the synced file list always has it at 0
+    final LockTable lockedFiles = new LockTable();
+
+    //Leases unlocked or expired whose queued changes the synchronization thread has yet to apply
+    final ConcurrentLinkedQueue<FileLease> releasedLeases = new ConcurrentLinkedQueue<>();
+
+    //Time a lease lasts unless the client renews it (-lease <seconds>)
+    long leaseTtl = 30_000; //milliseconds
+    //Downstream server B replicas mirroring this server directory
+    List<ReplicaLink> replicas = new CopyOnWriteArrayList<>();
+
+    //Server B inventory as of the last cycle and its hash tree, used to only transfer the parts that changed
+    ListingMirror mirrorB = null;
+
+    //true until a cycle has compared the inventories, the first comparison starts from the server B inventory
+    boolean firstCycle = true;
+    //true while the first comparison is seeding the last synced file list
+    boolean seedingFromB = false;
+
+    //Partition of the filename space owned by this server when running as one shard of a cluster
+    int shardIndex = 0;
+    int shardCount = 1;
+
+    //Runtime metrics, exposed over JMX and as text over HTTP (-metrics <port>)
+    final Metrics metrics = new Metrics();
+    final Metrics.Histogram syncCycleTime = metrics.histogram("sync_cycle_ns");
+    final Metrics.Histogram listingRoundTrip = metrics.histogram("listing_round_trip_ns");
+    final Metrics.Histogram treeListingRoundTrip = metrics.histogram("tree_listing_round_trip_ns");
+    final Metrics.Histogram downloadTime = metrics.histogram("download_ns");
+    final Metrics.Histogram uploadTime = metrics.histogram("upload_ns");
+    final Metrics.Histogram transferSize = metrics.histogram("transfer_bytes");
+    final Metrics.Counter downloadedBytes = metrics.counter("downloaded_bytes");
+    final Metrics.Counter uploadedBytes = metrics.counter("uploaded_bytes");
+    final Metrics.Counter transfersResumed = metrics.counter("transfers_resumed");
+    final Metrics.Counter resumedBytes = metrics.counter("resumed_bytes"); //not sent again thanks to a checkpoint
+    final Metrics.Counter filesMaterialized = metrics.counter("files_materialized"); //here or on server B
+    final Metrics.Counter materializedBytes = metrics.counter("materialized_bytes"); //not transferred
+    final Metrics.Histogram lockHoldTime = metrics.histogram("lock_hold_ns");
+    final Metrics.Counter leaseRenewals = metrics.counter("lease_renewals");
+    final Metrics.Counter leasesExpired = metrics.counter("leases_expired");
+    final Metrics.Counter lockRequestsFenced = metrics.counter("lock_requests_fenced");
+    final AtomicInteger connectedClients = new AtomicInteger();
+    final Metrics.Counter clientsStalled = metrics.counter("clients_stalled"); //disconnected for not reading
+    //file bodies are read from the channel directly, past the counting stream
+    final Metrics.Counter serverBBytesIn = metrics.counter("server_b_bytes_in");
+
+    //Channel of the server B connection, file bodies are streamed from it into the files
+    ReadableByteChannel serverBChannel = null;
+
+    //Reconnection delays after the server B connection is lost, doubled by every failed attempt (+-50% jitter)
+    static final long MIN_RECONNECT_DELAY = 250; //milliseconds
+    static final long MAX_RECONNECT_DELAY = 5_000;
+    volatile boolean serverBConnected = false;
+    final Metrics.Counter serverBFailures = metrics.counter("server_b_failures");
+    final Metrics.Histogram serverBOutage = metrics.histogram("server_b_outage_ns");
+
+    //Placeholders [filename, metadata] the current cycle put in the synced file list. If the connection is lost
+    //before their transfer is done they are removed, the file would otherwise count as synced and be deleted
+    final List<Object[]> placeholders = new ArrayList<>();
+
+    //Checkpoints [offset, prefix-hash] of the uploads server B did not finish, by filename. Asked for when the
+    //connection starts, each one is used (or dropped) by the next upload of its file
+    Map<String, Object[]> resumeOffsetsB = new ConcurrentHashMap<>();
+
+    //Content hashes of the directory files, to materialize renamed and copied files from a local copy. Set in main
+    ContentIndex contentIndex = null;
+
+    //Small files to upload [filename], small files to download [filename] and files to delete on server B
+    //[filename], sent in batches. Only used by the synchronization thread
+    final Batch uploadBatch = new Batch(4096);
+    final Batch downloadBatch = new Batch(4096);
+    final Batch deleteBatch = new Batch(64);
+    final Metrics.Histogram batchItems = metrics.histogram("batch_items");
+    final Metrics.Counter batchItemFailures = metrics.counter("batch_item_failures");
+
+    //Transfers by priority class, the ones a cycle had no budget left for wait for the next cycles.
+    //Only used by the synchronization thread
+    final TransferQueue transfers = new TransferQueue(metrics);
+
+    //Work a cycle does before it publishes the listing and leaves the rest to the next cycle, 0 - unlimited.
+    //At least one transfer runs per cycle (-budget <milliseconds>, -budgetmb <megabytes>)
+    long cycleBudget = 2_000; //milliseconds
+    long cycleBudgetBytes = 0;
+    final Metrics.Counter cyclesOverBudget = metrics.counter("cycles_over_budget");
+
+    //Paces the synchronization cycles, run by a single thread for all clients
+    final SyncScheduler scheduler = new SyncScheduler();
+    int cycleChanges = 0; //files transferred or deleted by the current cycle
+
+    //Latest serialized listing for the clients, replaced when it changes and handed to the outbox of every
+    //connected client [outbox, socket, connection]. Both guarded by the lock
+    final Object listingLock = new Object();
+    byte[] listingData = null;
+    final Set<Object[]> clientOutboxes = new HashSet<>();
+    //files of the latest listing in the order the clients list them (case insensitive), client indexes are
+    //resolved against it
+    volatile String[] listedFiles = new String[0];
+
+    public ServerA() {
+        metrics.gauge("clients_connected", connectedClients::get);
+        metrics.gauge("server_b_connected", () -> serverBConnected ? 1 : 0);
+        metrics.gauge("synced_files", () -> lastSyncedFileList.size());
+        metrics.gauge("server_b_mirror_bytes", () -> {
+            ListingMirror mirror = mirrorB;
+            return mirror == null ? 0 : mirror.bytes();
+        });
+        metrics.gauge("locked_files", () -> lockedFiles.size());
+        metrics.gauge("lock_queued_changes", () -> {
+            long[] queued = {0};
+            lockedFiles.forEach(lease -> queued[0] += lease.modifications.size());
+            return queued[0];
+        });
+        metrics.gauge("oldest_lock_age_ns", () -> {
+            long now = System.nanoTime();
+            long[] oldest = {0};
+            lockedFiles.forEach(lease -> oldest[0] = Math.max(oldest[0], now - lease.lockedAt));
+            return oldest[0];
+        });
+        metrics.gauge("pooled_buffers_outstanding", BufferPool::outstanding);
+        metrics.gauge("pooled_buffers_bytes", BufferPool::allocatedBytes);
+        metrics.gauge("replica_pending_bytes", () -> {
+            long pending = 0;
+            for (ReplicaLink replica : replicas) {
+                pending += replica.pendingBytes.get();
+            }
+            return pending;
+        });
+    }
 
     /**
      * SUPPORTED COMMANDS FOR IDENTIFYING TYPE OF MESSAGES(request and response)
@@ -24,63 +161,147 @@ public class ServerA {
         FOLDERLISTING, //response with directory listing data
         FILEUPLOAD, //sending file to a server (upload)
         FILEREQUEST, //requesting for a file (download)
-        LOCKFILE,
-        UNLOCKFILE,
+        LOCKFILE, //lock a file by its listing index, answered with a lease
+        UNLOCKFILE, //unlock a file by the leased filename and fencing token, or by index from the lease holder
+        RENEWLOCK, //renew the lease of a file, sent periodically by the client holding it
         FILEDELETE, //requesting for a file to be deleted
+        GETTREEHASH, //request for hashes of inventory tree nodes
+        TREEHASH, //response with hashes of inventory tree nodes
+        GETBUCKETLISTING, //request for the directory listing of some inventory tree buckets
+        LISTINGPAGE, //response with one page of directory listing data, more pages follow
+        GETRESUMEOFFSETS, //request for the checkpoints of interrupted transfers
+        RESUMEOFFSETS, //response with the checkpoints of interrupted transfers
+        FILERESUME, //rest of a file from a checkpoint of an interrupted transfer on
+        HASHREQUEST, //request for the content hash of a file
+        FILEHASH, //response with the content hash of a file
+        MATERIALIZE, //create a file from a local file with the same contents instead of uploading it
+        MATERIALIZED, //response to MATERIALIZE: ok, or missing if no local file has the contents
+        UPLOADBATCH, //sending many small files at once
+        REQUESTBATCH, //requesting many small files at once
+        DELETEBATCH, //requesting many files to be deleted at once
+        FILEBATCH, //response to REQUESTBATCH with the requested files
+        BATCHSTATUS, //response to UPLOADBATCH and DELETEBATCH, one status per item
+        HEARTBEAT, //sent by both ends of a server A - server B connection when they have nothing else to send
+        LISTINGCHANGED, //sent by server B on its own when its directory was changed by someone else
+    }
+
+
+    /**
+     * Passes a change made to this server directory to all replicas. The frame is serialized once and shared,
+     * each replica streams it on its own thread.
+     *
+     * @param frame serialized FILEUPLOAD or FILEDELETE frame
+     */
+    public void replicate(byte[] frame) {
+        for (ReplicaLink replica : this.replicas) {
+            replica.enqueue(frame);
+        }
+    }
+
+    /**
+     * Passes a file written to this server directory to all replicas. Each replica sends the file from the
+     * directory when its turn comes, no copy of the contents is queued.
+     *
+     * @param filename file relative to the directory
+     * @param size     current size of the file
+     */
+    public void replicateFile(String filename, long size) {
+        for (ReplicaLink replica : this.replicas) {
+            replica.enqueueFile(filename, size);
+        }
+    }
+
+    /**
+     * Shard owning a file. Uses String.hashCode which is the same on every JVM, so all shards and the router agree.
+     *
+     * @param filename   name of the file
+     * @param shardCount number of shards in the cluster
+     * @return index of the owning shard
+     */
+    public static int shardOf(String filename, int shardCount) {
+        return Math.floorMod(filename.hashCode(), shardCount);
+    }
+
+    /**
+     * Removes the files owned by other shards from an inventory. Does nothing when not sharded.
+     *
+     * @param inventory directory inventory
+     * @return the same inventory, holding only the files of this shard
+     */
+    public TreeMap<String, Long[]> filterOwnedFiles(TreeMap<String, Long[]> inventory) {
+        if (this.shardCount > 1) {
+            inventory.keySet().removeIf(filename -> !this.isOwned(filename));
+        }
+        return inventory;
     }
 
+    /**
+     * @return true if the file belongs to this shard, always true when not sharded
+     */
+    public boolean isOwned(String filename) {
+        return this.shardCount <= 1 || shardOf(filename, this.shardCount) == this.shardIndex;
+    }
 
-    public List<Map.Entry<String, Long[]>> sort(ConcurrentHashMap<String, Long[]> map) {
+    public List<Map.Entry<String, Long[]>> sort(Map<String, Long[]> map) {
         List<Map.Entry<String, Long[]>> list = new ArrayList<>(map.entrySet());
 
         list.sort((k1, k2) -> k1.getKey().toLowerCase().compareTo(k2.getKey().toLowerCase()));
         return list;
     }
 
+    /**
+     * @return file at a client index of the latest listing, null if the index is out of range
+     */
     public String getFilenameByIndex(int index) {
-        //sort the global last synced file list
-        List<Map.Entry<String, Long[]>> list = sort(this.lastSyncedFileList);
-        //return the key of the sorted list == filename
-        return list.get(index).getKey();
+        String[] files = this.listedFiles;
+        return index >= 0 && index < files.length ? files[index] : null;
     }
 
+    /**
+     * @return client index of a file in the latest listing, -1 if it is not listed
+     */
     public int getFilenameIndex(String filename) {
-        //sort the global last synced file list
-        List<Map.Entry<String, Long[]>> list = sort(this.lastSyncedFileList);
-        //return the key of the sorted list == filename
-        for (int i = 0; i < list.size(); i++) {
-            if ((list.get(i).getKey()).equals(filename)) {
-                return i;
-            }
-        }
-        return -1;
+        String[] files = this.listedFiles;
+        int index = Arrays.binarySearch(files, filename, String.CASE_INSENSITIVE_ORDER);
+        return index >= 0 && files[index].equals(filename) ? index : -1;
     }
 
     public void deleteFile(String path) {
         File file = new File(path);
         //ensure the file exists and is a file
         if (file.exists() && file.isFile()) {
+            //a deletion of this server, not reported by the directory watcher
+            DirectoryWatcher.expectWrite(path);
             file.delete();
-            System.out.println("File deleted successfully");
+            Log.debug("File deleted successfully");
         } else {
-            System.out.println("File doesn't seem to exist or is not a file");
+            Log.debug("File doesn't seem to exist or is not a file");
         }
     }
 
     public void writeFileContents(String path, byte[] content, long timestamp) throws IOException {
 
         File file = new File(path);
+        //a write of this server, not reported by the directory watcher
+        DirectoryWatcher.expectWrite(path);
+        //the file may be in a subdirectory that does not exist yet
+        Files.createDirectories(file.toPath().getParent());
+        //a hard link (-hardlinks) is replaced, writing into it would change the other names as well
+        if (ContentIndex.isLinked(file.toPath())) {
+            file.delete();
+        }
 
         try (FileOutputStream stream = new FileOutputStream(file)) {
             stream.write(content);
             file.setLastModified(timestamp);
         }
+        DirectoryWatcher.expectWrite(path);
     }
 
     public byte[] readFileContents(String path) throws IOException {
         File file = new File(path);
         if (!file.exists() && file.canRead()) {
-            System.out.println("Cannot locate or read the file: " + path);
+            Log.warn("Cannot locate or read the file: {}", path);
         }
 
         return Files.readAllBytes(Paths.get(path));
@@ -89,68 +310,45 @@ public class ServerA {
     public long getFileTimestamp(String path) {
         File file = new File(path);
         if (!file.exists() && file.canRead()) {
-            System.out.println("Cannot locate or read the file: " + path);
+            Log.warn("Cannot locate or read the file: {}", path);
         }
         return file.lastModified();
     }
 
+    /**
+     * Lists every file in the directory and its subdirectories. Subdirectories are scanned in parallel.
+     *
+     * @param path directory path
+     * @return map with the file path relative to the directory as key, [file-size,file-timestamp,file-lock-flag]
+     */
     public TreeMap<String, Long[]> listDirectoryInventory(String path) {
-        File folder = new File(path);
-        File[] fileList = folder.listFiles();
-
-        TreeMap<String, Long[]> fileMap = new TreeMap<>();
-        for (File file : fileList) {
-            //name as the key, [file-size,file-timestamp,file-lock-flag]
-            fileMap.put(file.getName(), new Long[]{file.length(), file.lastModified(), 0L});
-        }
-        return fileMap;
+        return DirectoryWalker.walk(path);
     }
 
 
     /**
-     * Serializes a mapped data into a string that can be deserialized later
-     * A single file string output format is
-     * FILENAME:FILELENGTH:FILETIMESTAMP:IFFILEISLOCKEDFLAG
+     * Serializes a mapped data into bytes that can be deserialized later.
+     * See ListingCodec for the binary format (front coded names, variable length numbers)
      *
      * @param files A map of files metadata
-     * @return serialized string data
+     * @return serialized listing
      */
-    public String serializeFiles(TreeMap<String, Long[]> files) {
-        StringBuilder builder = new StringBuilder();
-        String delimiter = ":"; //we will use a delimiter than cannot conflict with filename
-
-        for (String filename : files.keySet()) {
-            builder.append(filename + delimiter + files.get(filename)[0] + delimiter +
-                    files.get(filename)[1] + delimiter + files.get(filename)[2] + "\n");
-        }
-        return builder.toString();
+    public byte[] serializeFiles(TreeMap<String, Long[]> files) {
+        return ListingCodec.encode(files);
     }
 
     /**
-     * Deserializes a string into a mapped data
+     * Deserializes a listing into a mapped data
      * A single mapped file output contains
      * filename as key
      * Array of long containing [file-length, file-timestamp,if-file-is-locked-flag]
      *
-     * @param data: A serialized string data
+     * @param data: A serialized listing
      * @return a map of deserialized files metadata
      */
-    public TreeMap<String, Long[]> deserializeFiles(String data) {
-        String metaDelimiter = ":";
-        TreeMap<String, Long[]> fileMap = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
-
-
-        //split by end of line to get each file representation
-        String[] fileMeta = data.split("\n");
-
-
-        //for each file meta, expand it
-        for (String meta : fileMeta) {
-            String[] f = meta.split(metaDelimiter);
-            //the key represent the filename
-            fileMap.put(f[0], new Long[]{Long.valueOf(f[1]), Long.valueOf(f[2]), Long.valueOf(f[3])});
-        }
-        return fileMap;
+    public TreeMap<String, Long[]> deserializeFiles(byte[] data) throws IOException {
+        //natural (case sensitive) order, the order of the directory inventories
+        return ListingCodec.decode(data, new TreeMap<>());
     }
 
     /**
@@ -200,6 +398,25 @@ public class ServerA {
      * @throws IOException
      */
     public TreeMap<String, Object> deserializeData(DataInputStream stream) throws IOException {
+        TreeMap<String, Object> content = this.deserializeHeader(stream);
+
+        //5.Extract the data (can be empty)
+        if (content.containsKey("size")) {
+            byte[] data = new byte[(int) (long) (Long) content.get("size")];
+            stream.readFully(data);
+            content.put("data", data);
+        }
+
+        return content;
+    }
+
+    /**
+     * Deserializes the header of a frame, the data is left in the stream (e.g. to stream a file body to disk)
+     *
+     * @param stream Data input stream to read from. Should not be null
+     * @return command, size, filename and timestamp of the frame, empty if no frame has arrived
+     */
+    public TreeMap<String, Object> deserializeHeader(DataInputStream stream) throws IOException {
         TreeMap<String, Object> content = new TreeMap<>();
         char headersSeparator = ':';
         char headersEndSeparator = '\n';
@@ -212,42 +429,46 @@ public class ServerA {
 
         //1. Extract command
         StringBuilder commandBuilder = new StringBuilder();
-        while ((c = (char) stream.read()) != headersSeparator) {
+        while ((c = (char) stream.readUnsignedByte()) != headersSeparator) {
             commandBuilder.append(c);
         }
 
         if (!commandBuilder.isEmpty()) {
             content.put("command", commandBuilder.toString());
-            System.out.println("New command received: " + commandBuilder);
+            Log.debug("New command received: {}", commandBuilder);
+        }
+        //server B changed its directory during a cycle, after the cycle has compared it maybe: one more cycle
+        if (COMMAND.LISTINGCHANGED.name().contentEquals(commandBuilder)) {
+            this.scheduler.trigger();
         }
 
         //2. Extract size (can be zero)
         StringBuilder sizeBuilder = new StringBuilder();
-        while ((c = (char) stream.read()) != headersSeparator) {
+        while ((c = (char) stream.readUnsignedByte()) != headersSeparator) {
             sizeBuilder.append(c);
         }
 
         long contentSize = Long.valueOf(sizeBuilder.toString());
         if (!sizeBuilder.isEmpty()) {
             content.put("size", contentSize);
-            System.out.println("Received data of size: " + sizeBuilder);
+            Log.debug("Received data of size: {}", sizeBuilder);
 
         }
 
         //3. Extract filename (can be empty)
         StringBuilder filename = new StringBuilder();
-        while ((c = (char) stream.read()) != headersSeparator) {
+        while ((c = (char) stream.readUnsignedByte()) != headersSeparator) {
             filename.append(c);
         }
 
         if (!filename.isEmpty()) {
-            System.out.println("Received file: " + filename);
+            Log.debug("Received file: {}", filename);
             content.put("filename", filename.toString());
         }
 
         //4. Extract timestamp (can be zero)
         StringBuilder timestamp = new StringBuilder();
-        while ((c = (char) stream.read()) != headersEndSeparator) {
+        while ((c = (char) stream.readUnsignedByte()) != headersEndSeparator) {
             timestamp.append(c);
 
         }
@@ -256,15 +477,6 @@ public class ServerA {
             content.put("timestamp", Long.valueOf(timestamp.toString()));
         }
 
-        //5.Extract the data (can be empty)
-
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        while (contentSize != byteArrayOutputStream.size()) {
-            byteArrayOutputStream.write(stream.readByte());
-        }
-
-        content.put("data", byteArrayOutputStream.toByteArray());
-
         return content;
     }
 
@@ -276,364 +488,1148 @@ public class ServerA {
      * @param streamOut Server B output stream
      * @return returns directory listing in a treemap with filenames as keys
      */
-    public TreeMap<String, Long[]> getServerBInventory(DataInputStream streamIn, DataOutputStream streamOut) {
-        try {
-            System.out.println("Requesting server B inventory");
-            streamOut.write(this.serializeData(COMMAND.GETLISTING.name(), null, "", 0L));
-
-            TreeMap<String, Object> response = new TreeMap<>();
-
-            while (!response.getOrDefault("command", "").equals(COMMAND.FOLDERLISTING.name())) {
-                response = this.deserializeData(streamIn);
-            }
+    public TreeMap<String, Long[]> getServerBInventory(DataInputStream streamIn, FrameWriter streamOut)
+            throws IOException {
+        Log.debug("Requesting server B inventory");
+        long started = System.nanoTime();
+        streamOut.writeFrame(COMMAND.GETLISTING.name(), null, "", 0L);
+
+        //the listing arrives in pages, each one is parsed as it is read
+        ListingPageReader reader = new ListingPageReader(this, streamIn, null, false);
+        TreeMap<String, Long[]> inventory = reader.readAll();
+        this.listingRoundTrip.recordSince(started);
+
+        Log.info("Received directory listing from server B in {} pages", reader.pagesRead);
+        return inventory;
+    }
 
-            System.out.println("Received directory listing from server B");
+    /**
+     * Sends a request to server B and waits for the response
+     *
+     * @param command         request command
+     * @param data            request data
+     * @param responseCommand expected response command
+     * @return response data
+     */
+    String requestServerB(DataInputStream streamIn, FrameWriter streamOut, COMMAND command, String data,
+                          COMMAND responseCommand) throws IOException {
+        streamOut.writeFrame(command.name(), data.getBytes(), "", 0L);
+        return this.awaitServerB(streamIn, responseCommand);
+    }
 
-            String data = new String((byte[]) response.get("data"));
-            //if there is no data, return an empty treemap
-            if (data.equals("")) {
-                System.out.println("Server B directory has no files to deserialize");
-                return new TreeMap<>();
-            }
-            return deserializeFiles(data);
+    /**
+     * Waits for a response of server B to a request already sent
+     *
+     * @return response data
+     */
+    String awaitServerB(DataInputStream streamIn, COMMAND responseCommand) throws IOException {
+        return new String(this.awaitServerBData(streamIn, responseCommand));
+    }
 
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
+    byte[] awaitServerBData(DataInputStream streamIn, COMMAND responseCommand) throws IOException {
+        TreeMap<String, Object> response = new TreeMap<>();
+        while (!response.getOrDefault("command", "").equals(responseCommand.name())) {
+            response = this.deserializeData(streamIn);
         }
+        return (byte[]) response.get("data");
+    }
 
+    /**
+     * Asks a server B for the checkpoints of the uploads it did not finish, e.g. when the connection dropped
+     *
+     * @return [offset, prefix-hash] by filename
+     */
+    public Map<String, Object[]> getResumeOffsets(DataInputStream streamIn, FrameWriter streamOut)
+            throws IOException {
+        Map<String, Object[]> checkpoints = new ConcurrentHashMap<>(FileTransfer.parseCheckpoints(
+                this.requestServerB(streamIn, streamOut, COMMAND.GETRESUMEOFFSETS, "", COMMAND.RESUMEOFFSETS)));
+        if (!checkpoints.isEmpty()) {
+            Log.info("Server B has {} interrupted uploads to resume", checkpoints.size());
+        }
+        return checkpoints;
     }
 
     /**
-     * Requests for inventory of server B and synchronizes with that of server A (current)
+     * Brings the mirror of the server B inventory up to date by comparing inventory trees. Compares the root hash
+     * and descends only into the subtrees that differ, then transfers the listing of the differing buckets only.
+     * The mirror is built from the full listing of the first cycle.
      *
-     * @param directory :Server A directory
-     * @return inventory :Unsorted recently synchronized composite directory listing
+     * @param streamIn  Server B input stream
+     * @param streamOut Server B output stream
      */
-    public ConcurrentHashMap<String, Long[]> syncInventories(String directory, DataInputStream inStream, DataOutputStream outStream) throws IOException {
+    public void updateServerBMirror(DataInputStream streamIn, FrameWriter streamOut) throws IOException {
+        //1) compare the root, then the descendants of the nodes that differ, keeping only the ones that differ
+        List<Integer> differing = new ArrayList<>();
+        differing.add(1);
+        int exchanges = 0;
+        while (!differing.isEmpty()) {
+            StringBuilder nodeList = new StringBuilder();
+            for (int node : differing) {
+                nodeList.append(nodeList.length() > 0 ? "," : "").append(node);
+            }
+            String[] hashes = this.requestServerB(streamIn, streamOut, COMMAND.GETTREEHASH, nodeList.toString(),
+                    COMMAND.TREEHASH).split(",");
+            exchanges++;
+
+            List<Integer> changed = new ArrayList<>();
+            for (int i = 0; i < hashes.length; i++) {
+                if (Long.parseLong(hashes[i]) != this.mirrorB.hash(differing.get(i))) {
+                    changed.add(differing.get(i));
+                }
+            }
+            if (changed.isEmpty() || MerkleTree.isLeaf(changed.get(0))) {
+                differing = changed;
+                break;
+            }
 
+            //descend several levels at once to the descendants of the changed nodes, fewer round trips
+            differing = new ArrayList<>();
+            int fanOut = 1 << MerkleTree.LEVELS_PER_EXCHANGE;
+            for (int node : changed) {
+                for (int i = 0; i < fanOut; i++) {
+                    differing.add(node * fanOut + i);
+                }
+            }
+        }
 
-        //1) Get server B directory contents.
-        TreeMap<String, Long[]> inventoryB = this.getServerBInventory(inStream, outStream);
+        if (differing.isEmpty()) {
+            Log.info("Server B inventory unchanged ({} hash exchange)", exchanges);
+            return;
+        }
 
-        //2) read server A inventory
-        TreeMap<String, Long[]> inventoryA = this.listDirectoryInventory(directory);
+        //2) fetch the listing of the buckets that differ and replace them in the mirror
+        int[] buckets = new int[differing.size()];
+        StringBuilder bucketList = new StringBuilder();
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = differing.get(i) - MerkleTree.LEAVES;
+            bucketList.append(i > 0 ? "," : "").append(buckets[i]);
+        }
+        streamOut.writeFrame(COMMAND.GETBUCKETLISTING.name(), bucketList.toString().getBytes(), "", 0L);
+        TreeMap<String, Long[]> files = new ListingPageReader(this, streamIn, null, false).readAll();
+        this.mirrorB.replaceBuckets(buckets, files);
 
+        Log.info("Server B inventory updated from {} changed buckets after {} hash exchanges", differing.size(),
+                exchanges);
+    }
 
-        //3 if directory A and B are empty, return
-        if (inventoryA.size() == 0 && inventoryB.size() == 0) {
-            System.err.println("Both directories in server A and B are empty. Skipping synchronization");
-            return this.lastSyncedFileList;
+    /**
+     * Downloads a file from server B. If the file is locked, the change is queued instead of written.
+     */
+    void downloadFile(String directory, String filename, Long[] metaB, DataInputStream inStream,
+                      FrameWriter outStream) throws IOException {
+        //check if file exist on locked files
+        FileLease lease = this.lockedFiles.get(filename);
+        if (lease != null) {
+            LinkedBlockingDeque<Object[]> modifications = lease.modifications;
+            //check if last modifications  match current
+
+            if (!modifications.isEmpty()) { //in-case there are no actions
+                //check if the file has already been queued, skip
+                Object[] lastAction = modifications.peekLast();
+
+                long oldSize = (Long) lastAction[4];
+                long oldTimestamp = (Long) lastAction[2];
+
+                //check if size && timestamp are equal where action is create
+                if (lastAction[0].equals("create") && (metaB[0] == oldSize && metaB[1] == oldTimestamp)) {
+                    Log.debug("Skipping. Similar file update/creation already queued");
+                    return;
+                }
+            }
         }
 
-        //if last synced file list is empty,
-        if (this.lastSyncedFileList.isEmpty()) {
-            this.lastSyncedFileList.putAll(inventoryB); //since B file list is the source of truth
+        long started = System.nanoTime();
+        //a renamed or copied file is copied from the local file with the same contents
+        if (lease == null && this.materializeFromLocalCopy(directory, filename, metaB, inStream, outStream)) {
+            this.downloadTime.recordSince(started);
+            return;
         }
 
-        //4) Check which files are outdated
+        Log.debug("Requesting for file from server B {}", filename);
 
-        System.out.println("Comparing files from server B and that of A");
-        TreeMap<String, Long[]> filesFromAToDownload = new TreeMap<>();
-        TreeMap<String, Long[]> filesFromAToUpload = new TreeMap<>();
-        TreeMap<String, Long[]> filesOnAToDelete = new TreeMap<>();
-        TreeMap<String, Long[]> filesOnBToDelete = new TreeMap<>();
+        //FILENAME[\nOFFSET:HASH], with the checkpoint of an interrupted download so server B can resume it.
+        //Changes of a locked file are queued in memory, not staged, so they always start from the beginning
+        Object[] checkpoint = lease == null ? FileTransfer.checkpoint(directory, filename) : null;
+        String request = checkpoint == null ? filename : filename + "\n" + checkpoint[0] + ":" + checkpoint[1];
+        outStream.writeFrame(COMMAND.FILEREQUEST.name(), request.getBytes(), "", 0L);
 
-        //Check Server B directory discrepancies
-        for (String filename : inventoryB.keySet()) {
+        Log.debug("Awaiting for server B to upload {}", filename);
 
-            if (!inventoryA.containsKey(filename) && !this.lastSyncedFileList.containsKey(filename)) {
-                //if the file is not in A and also on last synced files, set it to be downloaded
-                filesFromAToDownload.put(filename, inventoryB.get(filename));
-
-                this.lastSyncedFileList.put(filename, inventoryB.get(filename)); //add as a placeholder
-            } else if (!inventoryA.containsKey(filename) && this.lastSyncedFileList.containsKey(filename)) {
-                //if file is only in B and is on last synced file list, set it to be deleted
-                filesOnBToDelete.put(filename, inventoryB.get(filename));
-            } else {
-                Long[] metaA = inventoryA.get(filename);
-                Long[] metaB = inventoryB.get(filename);
-
-                if (metaB[1] > metaA[1]) {
-                    //if the file in server B is more recent, set the file for download
-                    filesFromAToDownload.put(filename, metaB);
-                }
-            }
+        //only the header is read here, the body is still in the connection
+        TreeMap<String, Object> response = this.deserializeHeader(inStream);
+        while (!response.getOrDefault("command", "").equals(COMMAND.FILEUPLOAD.name())
+                && !response.getOrDefault("command", "").equals(COMMAND.FILERESUME.name())) {
+            FileTransfer.skip(this.serverBChannel, (Long) response.getOrDefault("size", 0L));
+            response = this.deserializeHeader(inStream);
+        }
+        long size = (Long) response.getOrDefault("size", 0L);
+        Long timestamp = (Long) response.getOrDefault("timestamp", 0L);
+        if (timestamp < 0) {
+            //server B rejected the request or no longer has the file. The placeholder of a first download is
+            //dropped so the file is not taken for synchronized, the next cycle compares it again
+            Log.warn("Server B could not send {}", filename);
+            this.lastSyncedFileList.remove(filename, metaB);
+            this.downloadTime.recordSince(started);
+            return;
+        }
+        long offset = 0;
+        if (response.get("command").equals(COMMAND.FILERESUME.name())) {
+            //the offset line is read (and counted) through the stream, the file data follows
+            offset = FileTransfer.readResumeOffset(inStream);
+            size -= FileTransfer.offsetLineLength(offset);
+            Log.info("Resuming download of {} at {}", filename, offset);
+            this.transfersResumed.increment();
+            this.resumedBytes.add(offset);
         }
 
-        //Check Server A directory discrepancies
-        for (String filename : inventoryA.keySet()) {
-
-            if (!inventoryB.containsKey(filename) && !this.lastSyncedFileList.containsKey(filename)) {
+        if (lease != null) {
+            Log.debug("File has been locked. Queuing changes");
 
-                //if the file is not in B and also on last synced files, set it to be downloaded
-                filesFromAToUpload.put(filename, inventoryA.get(filename));
+            //Add the creation/modification request to the Queue, the contents are kept until the file is unlocked
+            Log.info("Queuing the changes of the locked file {}", filename);
+            byte[] data = inStream.readNBytes((int) size);
+            //add object of : action=create, filename, new timestamp,file array bytes
+            lease.modifications.add(new Object[]{"create", filename, timestamp, data, size});
 
-                this.lastSyncedFileList.put(filename, inventoryA.get(filename)); //add as a placeholder
+        } else {
+            Log.debug("File not locked. Update the changes.");
 
-            } else if (!inventoryB.containsKey(filename) && this.lastSyncedFileList.containsKey(filename)) {
-                //if the file is not in B, but is on last synced files, set it to be deleted
+            //stream the body into the staging file, which replaces the file once complete
+            if (FileTransfer.receive(this.serverBChannel, size, directory, filename, timestamp, offset)) {
+                this.replicateFile(filename, offset + size);
 
-                filesOnAToDelete.put(filename, inventoryA.get(filename));
+                //update the synced metadata
+                this.lastSyncedFileList.replace(filename, new Long[]{offset + size, timestamp, 0L});
             } else {
-                Long metaA[] = inventoryA.get(filename);
-                Long metaB[] = inventoryB.get(filename);
-
-                //if file in A is more recent, set it for upload to server B
-                //NOTE: locked file should not be modified on directory A
-                if (metaA[1] > metaB[1]) {
-                    filesFromAToUpload.put(filename, metaA);
-                }
+                //checkpoint lost in the meantime, the placeholder makes the next cycle download it again
+                this.lastSyncedFileList.remove(filename);
             }
-        }
 
+        }
+        this.downloadTime.recordSince(started);
+        this.transferSize.record(size);
+        this.downloadedBytes.add(size);
+    }
 
-        //6) Request for any outdated or missing files from server B
-        for (String filename : filesFromAToDownload.keySet()) {
-            //check if file exist on locked files
-            int index = getFilenameIndex(filename);
-            if (this.lockedFiles.containsKey(index)) {
-                LinkedBlockingDeque<Object[]> modifications = this.lockedFiles.get(index);
-                //check if last modifications  match current
+    /**
+     * Uploads a file from server A to B
+     */
+    void uploadFile(String directory, String filename, DataInputStream inStream, FrameWriter outStream)
+            throws IOException {
+        Log.debug("Uploading file from server A to B {}", filename);
+        long started = System.nanoTime();
+        Long timestamp = this.getFileTimestamp(directory + filename);
+        //a renamed or copied file is materialized by server B from its own copy of the contents
+        long length = new File(directory + filename).length();
+        if (this.materializeOnB(filename, length, timestamp, inStream, outStream)) {
+            this.uploadTime.recordSince(started);
+            this.replicateFile(filename, length);
+            this.lastSyncedFileList.replace(filename, new Long[]{length, timestamp, 0L});
+            return;
+        }
+        //resumed from the checkpoint of an interrupted upload if server B has the same beginning of the file
+        long offset = FileTransfer.resumableOffset(directory + filename, this.resumeOffsetsB.remove(filename));
+        //streamed from the file through a pooled buffer
+        long size = outStream.writeFileFrame(offset > 0 ? COMMAND.FILERESUME.name() : COMMAND.FILEUPLOAD.name(),
+                directory + filename, filename, timestamp, offset);
+        if (offset > 0) {
+            Log.info("Resuming upload of {} at {} of {} bytes", filename, offset, size);
+            this.transfersResumed.increment();
+            this.resumedBytes.add(offset);
+        }
+        this.uploadTime.recordSince(started);
+        this.transferSize.record(size - offset);
+        this.uploadedBytes.add(size - offset);
+        this.replicateFile(filename, size);
+        //update the synced metadata
+        this.lastSyncedFileList.replace(filename, new Long[]{size, timestamp, 0L});
+    }
 
-                if (!modifications.isEmpty()) { //in-case there are no actions
-                    //check if the file has already been queued, skip
-                    Object[] lastAction = modifications.peekLast();
+    /**
+     * Uploads a file, in the upload batch if it is small. The batches are sent first otherwise
+     */
+    void queueUpload(String directory, String filename, DataInputStream inStream, FrameWriter outStream)
+            throws IOException {
+        long size = new File(directory + filename).length();
+        if (size > Batch.MAX_FILE_SIZE) {
+            this.flushBatches(directory, inStream, outStream);
+            this.uploadFile(directory, filename, inStream, outStream);
+        } else if (this.uploadBatch.add(new Object[]{filename}, size + filename.length() + 32)) {
+            this.flushUploads(directory, inStream, outStream);
+        }
+    }
 
-                    long newSize = filesFromAToDownload.get(filename)[0];
-                    long oldSize = (Long) lastAction[4];
+    /**
+     * Sends the upload batch and applies the status of each file: a file server B did not write is no longer
+     * counted as synchronized, so the next cycle uploads it again
+     */
+    void flushUploads(String directory, DataInputStream inStream, FrameWriter outStream) throws IOException {
+        if (this.uploadBatch.isEmpty()) {
+            return;
+        }
+        List<Object[]> items = this.uploadBatch.take();
+        long started = System.nanoTime();
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        Long[][] metadata = new Long[items.size()][];
+        for (int i = 0; i < items.size(); i++) {
+            String filename = (String) items.get(i)[0];
+            //timestamp first, a change made while reading leaves a newer timestamp for the next cycle
+            long timestamp = this.getFileTimestamp(directory + filename);
+            byte[] data = null;
+            try {
+                data = Files.readAllBytes(Paths.get(directory + filename));
+                metadata[i] = new Long[]{(long) data.length, timestamp, 0L};
+            } catch (IOException e) {
+                Log.debug("{} cannot be read: {}", filename, e.getMessage());
+            }
+            Batch.writeItem(batch, filename, timestamp, data);
+        }
+        outStream.writeFrame(COMMAND.UPLOADBATCH.name(), batch.toByteArray(), "", (long) items.size());
+        String[] statuses = this.awaitServerB(inStream, COMMAND.BATCHSTATUS).split("\n");
+        this.batchItems.record(items.size());
+
+        for (int i = 0; i < items.size(); i++) {
+            String filename = (String) items.get(i)[0];
+            if (metadata[i] != null && i < statuses.length && statuses[i].equals("ok")) {
+                this.lastSyncedFileList.replace(filename, metadata[i]);
+                this.replicateFile(filename, metadata[i][0]);
+                this.uploadedBytes.add(metadata[i][0]);
+                this.transferSize.record(metadata[i][0]);
+            } else {
+                Log.warn("Batch upload of {} failed", filename);
+                this.batchItemFailures.increment();
+                this.lastSyncedFileList.remove(filename);
+            }
+        }
+        this.uploadTime.recordSince(started);
+        Log.debug("Uploaded a batch of {} files", items.size());
+    }
 
-                    long newTimestamp = filesFromAToDownload.get(filename)[1];
-                    long oldTimestamp = (Long) lastAction[2];
+    /**
+     * Downloads a file, in the download batch if it is small and not locked. The batches are sent first otherwise
+     */
+    void queueDownload(String directory, String filename, Long[] metaB, DataInputStream inStream,
+                       FrameWriter outStream) throws IOException {
+        if (metaB[0] > Batch.MAX_FILE_SIZE || this.lockedFiles.isLocked(filename)) {
+            this.flushBatches(directory, inStream, outStream);
+            this.downloadFile(directory, filename, metaB, inStream, outStream);
+        } else if (this.downloadBatch.add(new Object[]{filename}, metaB[0] + filename.length() + 32)) {
+            this.flushDownloads(directory, inStream, outStream);
+        }
+    }
 
-                    //check if size && timestamp are equal where action is create
-                    if (lastAction[0].equals("create") && (newSize == oldSize && newTimestamp == oldTimestamp)) {
-                        System.out.println("Skipping. Similar file update/creation already queued");
-                        continue;
-                    }
-                }
+    /**
+     * Requests the files of the download batch and writes them. A file locked in the meantime has the change
+     * queued, a file server B could not send is no longer counted as synchronized
+     */
+    void flushDownloads(String directory, DataInputStream inStream, FrameWriter outStream) throws IOException {
+        if (this.downloadBatch.isEmpty()) {
+            return;
+        }
+        List<Object[]> requested = this.downloadBatch.take();
+        long started = System.nanoTime();
+        StringBuilder names = new StringBuilder();
+        for (Object[] item : requested) {
+            names.append(item[0]).append('\n');
+        }
+        outStream.writeFrame(COMMAND.REQUESTBATCH.name(), names.toString().getBytes(), "", (long) requested.size());
+        List<Object[]> items = Batch.readItems(this.awaitServerBData(inStream, COMMAND.FILEBATCH));
+        this.batchItems.record(items.size());
+
+        for (Object[] item : items) {
+            String filename = (String) item[0];
+            Long timestamp = (Long) item[1];
+            byte[] data = (byte[]) item[2];
+            if (data == null) {
+                Log.warn("Batch download of {} failed", filename);
+                this.batchItemFailures.increment();
+                this.lastSyncedFileList.remove(filename);
+                continue;
             }
 
-            System.out.println("Requesting for file from server B " + filename);
-
-            outStream.write(this.serializeData(COMMAND.FILEREQUEST.name(), filename.getBytes(), "", 0L));
+            FileLease lease = this.lockedFiles.get(filename);
+            if (lease != null) {
+                Log.info("Queuing the changes of the locked file {}", filename);
+                lease.modifications.add(new Object[]{"create", filename, timestamp, data, (long) data.length});
+            } else {
+                this.writeFileContents(directory + filename, data, timestamp);
+                this.replicateFile(filename, data.length);
+                this.lastSyncedFileList.replace(filename, new Long[]{(long) data.length, timestamp, 0L});
+            }
+            this.downloadedBytes.add(data.length);
+            this.transferSize.record(data.length);
+        }
+        this.downloadTime.recordSince(started);
+        Log.debug("Downloaded a batch of {} files", items.size());
+    }
 
-            System.out.println("Awaiting for server B to upload " + filename);
+    /**
+     * Sends the upload and download batches, e.g. before a transfer in its own frame so the small files queued
+     * earlier do not wait behind it
+     */
+    void flushBatches(String directory, DataInputStream inStream, FrameWriter outStream) throws IOException {
+        this.flushUploads(directory, inStream, outStream);
+        this.flushDownloads(directory, inStream, outStream);
+    }
 
-            TreeMap<String, Object> response = new TreeMap<>();
+    /**
+     * Deletes a file on server B, in the delete batch
+     */
+    void queueDeleteOnB(String filename, DataInputStream inStream, FrameWriter outStream) throws IOException {
+        if (this.deleteBatch.add(new Object[]{filename}, filename.length() + 1)) {
+            this.flushDeletes(inStream, outStream);
+        }
+    }
 
-            while (!response.getOrDefault("command", "").equals(COMMAND.FILEUPLOAD.name())) {
-                response = this.deserializeData(inStream);
+    /**
+     * Sends the delete batch. A file server B failed to delete stays synchronized, so the next cycle deletes it again
+     */
+    void flushDeletes(DataInputStream inStream, FrameWriter outStream) throws IOException {
+        if (this.deleteBatch.isEmpty()) {
+            return;
+        }
+        List<Object[]> items = this.deleteBatch.take();
+        StringBuilder names = new StringBuilder();
+        for (Object[] item : items) {
+            names.append(item[0]).append('\n');
+        }
+        outStream.writeFrame(COMMAND.DELETEBATCH.name(), names.toString().getBytes(), "", (long) items.size());
+        String[] statuses = this.awaitServerB(inStream, COMMAND.BATCHSTATUS).split("\n");
+        this.batchItems.record(items.size());
+
+        for (int i = 0; i < items.size(); i++) {
+            String filename = (String) items.get(i)[0];
+            if (i < statuses.length && statuses[i].equals("ok")) {
+                this.replicate(this.serializeData(COMMAND.FILEDELETE.name(), filename.getBytes(), "", 0L));
+                this.lastSyncedFileList.remove(filename);
+            } else {
+                Log.warn("Batch deletion of {} failed", filename);
+                this.batchItemFailures.increment();
             }
+        }
+    }
 
-            if (this.lockedFiles.containsKey(index)) {
-                System.out.println("File has been locked. Queuing changes");
+    /**
+     * Synchronized files of a given size, the likely sources of a renamed or copied file (both keep the size)
+     *
+     * @param filename file being transferred, left out
+     * @return at most MAX_CANDIDATES filenames
+     */
+    List<String> sameSizeFiles(String filename, long size) {
+        List<String> candidates = new ArrayList<>();
+        for (Map.Entry<String, Long[]> entry : this.lastSyncedFileList.entrySet()) {
+            if (entry.getValue()[0] == size && !entry.getKey().equals(filename)) {
+                candidates.add(entry.getKey());
+                if (candidates.size() == ContentIndex.MAX_CANDIDATES) {
+                    break;
+                }
+            }
+        }
+        return candidates;
+    }
 
-                //Add the creation/modification request to the Queue
+    /**
+     * Asks server B to create a file from one of its own files with the same contents instead of uploading it.
+     * Only tried for large files with a synchronized file of the same size.
+     *
+     * @return true if server B has materialized the file, false if it has to be uploaded
+     */
+    boolean materializeOnB(String filename, long size, long timestamp, DataInputStream inStream,
+                           FrameWriter outStream) throws IOException {
+        if (size < ContentIndex.MIN_SIZE) {
+            return false;
+        }
+        List<String> sources = this.sameSizeFiles(filename, size);
+        String hash = sources.isEmpty() ? null : this.contentIndex.hashOrNull(filename);
+        if (hash == null) {
+            return false;
+        }
 
-                LinkedBlockingDeque<Object[]> modifications = this.lockedFiles.get(index);
+        //HASH\nSOURCE[\nSOURCE...]
+        outStream.writeFrame(COMMAND.MATERIALIZE.name(), (hash + "\n" + String.join("\n", sources)).getBytes(),
+                filename, timestamp);
+        if (!this.awaitServerB(inStream, COMMAND.MATERIALIZED).equals("ok")) {
+            return false;
+        }
+        Log.info("Server B materialized {} from a local copy", filename);
+        this.filesMaterialized.increment();
+        this.materializedBytes.add(size);
+        return true;
+    }
 
-                System.out.println("Queuing the changes of the locked file " + filename);
-                //add object of : action=create, filename, new timestamp,file array bytes
-                modifications.add(new Object[]{"create", filename, response.get("timestamp"), response.get("data"), response.get("size")});
-                this.lockedFiles.replace(index, modifications);
+    /**
+     * Creates a file server B has from a local file with the same contents instead of downloading it.
+     * Only tried for large files with a synchronized file of the same size.
+     *
+     * @return true if the file has been materialized, false if it has to be downloaded
+     */
+    boolean materializeFromLocalCopy(String directory, String filename, Long[] metaB, DataInputStream inStream,
+                                     FrameWriter outStream) throws IOException {
+        if (metaB[0] < ContentIndex.MIN_SIZE) {
+            return false;
+        }
+        List<String> candidates = this.sameSizeFiles(filename, metaB[0]);
+        if (candidates.isEmpty()) {
+            return false;
+        }
+        String hash = this.requestServerB(inStream, outStream, COMMAND.HASHREQUEST, filename, COMMAND.FILEHASH);
+        String source = hash.isEmpty() ? null : this.contentIndex.find(hash, candidates);
+        if (source == null) {
+            return false;
+        }
 
-            } else {
-                System.out.println("File not locked. Update the changes.");
+        this.contentIndex.materialize(source, filename, metaB[1]);
+        Log.info("Materialized {} from {}", filename, source);
+        this.replicateFile(filename, metaB[0]);
+        this.lastSyncedFileList.replace(filename, new Long[]{metaB[0], metaB[1], 0L});
+        this.filesMaterialized.increment();
+        this.materializedBytes.add(metaB[0]);
+        return true;
+    }
 
-                byte[] data = (byte[]) response.get("data");
-                Long timestamp = (Long) response.get("timestamp");
-                //write the response into a file
-                writeFileContents(directory + response.get("filename"), data, timestamp);
+    /**
+     * Deletes a file on server A that was deleted on server B
+     */
+    void deleteFileOnA(String directory, String filename) throws IOException {
+        Log.debug("Deleting outdated file on server A {}", filename);
+        this.deleteFile(directory + filename);
+        DirectoryWalker.removeEmptyParents(directory, filename);
+        this.replicate(this.serializeData(COMMAND.FILEDELETE.name(), filename.getBytes(), "", 0L));
+        //update last file synced list
+        this.lastSyncedFileList.remove(filename);
+    }
 
-                //update the synced metadata
-                this.lastSyncedFileList.replace(filename, new Long[]{(long) data.length, timestamp, 0L});
+    /**
+     * Requests for inventory of server B and synchronizes with that of server A (current)
+     *
+     * @param directory :Server A directory
+     * @return inventory :Recently synchronized composite directory listing, sorted by filename
+     */
+    public synchronized ConcurrentSkipListMap<String, Long[]> syncInventories(String directory, DataInputStream inStream, FrameWriter outStream) throws IOException {
+        long cycleStarted = System.nanoTime();
+        long bytesAtStart = this.uploadedBytes.get() + this.downloadedBytes.get();
+        this.cycleChanges = 0;
+        this.placeholders.clear();
+        //the transfers left by the last cycle are found again by the comparison, and keep their age
+        this.transfers.requeue();
+
+        //1) read server A inventory
+        TreeMap<String, Long[]> inventoryA = this.filterOwnedFiles(this.listDirectoryInventory(directory));
+
+        //2) Get server B directory contents. The first cycle streams the full listing page by page and compares
+        //each page as it arrives, later cycles only fetch the buckets that changed and decode the mirror as they go
+        Iterator<Map.Entry<String, Long[]>> inventoryB;
+        ListingPageReader listingReader = null;
+        ListingCodec.Encoder listingB = null;
+        long listingStarted = System.nanoTime();
+        if (this.mirrorB == null) {
+            Log.debug("Requesting server B inventory");
+            outStream.writeFrame(COMMAND.GETLISTING.name(), null, "", 0L);
+            listingB = new ListingCodec.Encoder();
+            listingReader = new ListingPageReader(this, inStream, listingB, true);
+            inventoryB = listingReader;
+        } else {
+            this.updateServerBMirror(inStream, outStream);
+            this.treeListingRoundTrip.recordSince(listingStarted);
+            inventoryB = this.mirrorB.iterator(this::isOwned);
+        }
 
+        //deletions [action, filename, size] run last, a renamed file is materialized from the old name before it goes
+        List<Object[]> deletions = new ArrayList<>();
+
+        //3) Compare the inventories in a single ordered pass. Transfers [action, filename, server B metadata,
+        //placeholder or null, size] are queued by priority, they share the server B connection with the listing pages
+        //still arriving
+        Log.debug("Comparing files from server B and that of A");
+        SyncDiff.ActionHandler handler = (action, filename, metaA, metaB, synced) -> {
+            switch (action) {
+                case DOWNLOAD:
+                case UPLOAD:
+                    Long[] metadata = action == SyncDiff.ACTION.UPLOAD ? metaA : metaB;
+                    if (!synced) {
+                        this.lastSyncedFileList.put(filename, metadata); //add as a placeholder
+                        this.placeholders.add(new Object[]{filename, metadata});
+                    }
+                    this.transfers.add(filename, new Object[]{action, filename, metaB, synced ? null : metadata,
+                            metadata[0]}, metadata[0], this.lockedFiles.isLocked(filename));
+                    this.cycleChanges++;
+                    break;
+                case DELETE_A:
+                case DELETE_B:
+                    Long[] deleted = action == SyncDiff.ACTION.DELETE_A ? metaA : metaB;
+                    deletions.add(new Object[]{action, filename, deleted[0]});
+                    this.cycleChanges++;
+                    break;
+                default:
+                    break;
             }
-
+        };
+        //on the first cycle the last synced file list starts as the server B inventory (B file list is the source of
+        //truth)
+        if (this.firstCycle && this.lastSyncedFileList.isEmpty()) {
+            handler = SyncDiff.seededFromB(this.lastSyncedFileList, handler);
+            this.seedingFromB = true;
+        }
+        try {
+            SyncDiff.diff(inventoryA.entrySet().iterator(), inventoryB, this.lastSyncedFileList.entrySet().iterator(), handler);
+        } catch (UncheckedIOException e) { //failed to read a listing page
+            throw e.getCause();
+        }
+        this.firstCycle = false;
+        this.seedingFromB = false;
+
+        if (listingReader != null) {
+            //includes the comparison of the pages read so far, it runs while the next pages are in flight
+            this.listingRoundTrip.recordSince(listingStarted);
+            this.mirrorB = new ListingMirror(listingB.toByteArray());
+            Log.info("Received directory listing from server B in {} pages, {} files kept in {} bytes",
+                    listingReader.pagesRead, this.mirrorB.size(), this.mirrorB.bytes());
         }
 
-        //7) Upload any new files from server A to B
-        for (String filename : filesFromAToUpload.keySet()) {
-            System.out.println("Uploading file from server A to B ");
-            byte[] data = readFileContents(directory + filename);
-            Long timestamp = this.getFileTimestamp(directory + filename);
-            outStream.write(this.serializeData(COMMAND.FILEUPLOAD.name(), data, filename, timestamp));
-            //update the synced metadata
-            this.lastSyncedFileList.replace(filename, new Long[]{(long) data.length, timestamp, 0L});
+        //4) Run the transfers, highest priority first, until the budget of the cycle is used up. Small files go out
+        //in batches, which are sent before any transfer in its own frame so they do not wait behind it
+        Object[] transfer;
+        while ((transfer = this.transfers.poll()) != null) {
+            String filename = (String) transfer[1];
+            Long[] metaB = (Long[]) transfer[2];
+            if (transfer[0] == SyncDiff.ACTION.DOWNLOAD) {
+                this.queueDownload(directory, filename, metaB, inStream, outStream);
+            } else {
+                //NOTE: locked file should not be modified on directory A
+                this.queueUpload(directory, filename, inStream, outStream);
+            }
+            if (this.isOverBudget(cycleStarted, bytesAtStart)) {
+                break;
+            }
         }
 
-        //8 Delete file on A
-        for (String filename : filesOnAToDelete.keySet()) {
-            System.out.println("Deleting outdated file on server A " + filename);
-            this.deleteFile(directory + filename);
-            //update last file synced list
-            this.lastSyncedFileList.remove(filename);
+        //5) Send what is left in the batches, deletions last
+        this.flushBatches(directory, inStream, outStream);
+        if (!this.transfers.isEmpty()) {
+            //the rest waits for the next cycles, files not transferred yet are not synchronized. A renamed file may
+            //still be materialized from the file it replaces (same size), those deletions wait as well
+            Set<Long> pendingSizes = new HashSet<>();
+            for (Object[] pending : this.transfers.pending()) {
+                if (pending[3] != null) {
+                    this.lastSyncedFileList.remove((String) pending[1], pending[3]);
+                }
+                pendingSizes.add((Long) pending[4]);
+            }
+            int deletionsLeft = deletions.size();
+            deletions.removeIf(deletion -> (Long) deletion[2] >= ContentIndex.MIN_SIZE
+                    && pendingSizes.contains((Long) deletion[2]));
+            this.cyclesOverBudget.increment();
+            Log.info("Cycle budget used up, {} transfers and {} deletions left for the next cycles",
+                    this.transfers.size(), deletionsLeft - deletions.size());
         }
+        for (Object[] deletion : deletions) {
+            if (deletion[0] == SyncDiff.ACTION.DELETE_A) {
+                this.deleteFileOnA(directory, (String) deletion[1]);
+            } else {
+                this.queueDeleteOnB((String) deletion[1], inStream, outStream);
+            }
+        }
+        this.flushDeletes(inStream, outStream);
 
-        //Send request to delete files on B
-        for (String filename : filesOnBToDelete.keySet()) {
-            System.out.println("Sending request to delete outdated file on server B " + filename);
-            outStream.write(this.serializeData(COMMAND.FILEDELETE.name(), filename.getBytes(), "", 0L));
-            //update last file synced list
-            this.lastSyncedFileList.remove(filename);
+        for (ReplicaLink replica : this.replicas) {
+            Log.info("Replica {}", replica.status());
         }
 
-        System.out.println("Files synchronization in current cycle done");
+        Log.info("Files synchronization in current cycle done");
+        this.syncCycleTime.recordSince(cycleStarted);
 
         //) Return the composite synchronized inventory list
         return this.lastSyncedFileList;
     }
 
     /**
-     * Process queued file changes and then remove it from lockedFiles map
+     * Process queued file changes and then remove it from lockedFiles map (draining -> unlocked).
+     * Runs on the synchronization thread, between cycles.
      *
-     * @param fileIndex index of the file as specified by user.
+     * @param lease released or expired lease of the file
      */
-    public void processQueuedChanges(String serverRoot, int fileIndex) {
-        System.out.println("Processing queued file changes");
+    public void processQueuedChanges(String serverRoot, FileLease lease) {
+        Log.debug("Processing queued file changes");
         //get the modifications
-        LinkedBlockingDeque<Object[]> modifications = this.lockedFiles.get(fileIndex);
+        LinkedBlockingDeque<Object[]> modifications = lease.modifications;
 
-        System.out.println("Queued changes total " + modifications.size());
+        Log.info("Queued changes total {}", modifications.size());
 
         Iterator<Object[]> iterator = modifications.iterator();
-        String filename = null;
+        String filename = lease.filename;
         Object[] modification = null;
         while (iterator.hasNext()) {
             modification = iterator.next();
-            filename = (String) modification[0];
-            if (modification[0] == "delete") {
-                System.out.println("Processing queued deletion request for " + filename + " with timestamp: " + modification[2]);
-                this.deleteFile(serverRoot + filename);
-
-            } else {
-                System.out.println("Processing writing to file " + filename + " with timestamp: " + modification[2]);
-                try {
+            try {
+                if (modification[0].equals("delete")) {
+                    Log.debug("Processing queued deletion request for {} with timestamp: {}", filename, modification[2]);
+                    this.deleteFile(serverRoot + filename);
+                    DirectoryWalker.removeEmptyParents(serverRoot, filename);
+                    this.replicate(this.serializeData(COMMAND.FILEDELETE.name(), filename.getBytes(), "", 0L));
+
+                } else {
+                    Log.debug("Processing writing to file {} with timestamp: {}", filename, modification[2]);
                     this.writeFileContents(serverRoot + filename, (byte[]) modification[3], (Long) modification[2]);
-                } catch (IOException e) {
-                    e.printStackTrace();
+                    this.replicateFile(filename, ((byte[]) modification[3]).length);
                 }
-
+            } catch (IOException e) {
+                Log.error("Failed to apply the queued change of {}", filename, e);
             }
         }
 
-        //remove the file from locked list
-        this.lockedFiles.remove(fileIndex);
-        if (filename == null) { //in case there were no queued requests
-            filename = getFilenameByIndex(fileIndex);
-        }
         //if the last action was deletion, the remove it from global map
-        if (modification != null && modification[0] == "delete") {
+        if (modification != null && modification[0].equals("delete")) {
             //remove from global file list
             this.lastSyncedFileList.remove(filename);
-        } else {
-            //else, remove locked flag
-            Long[] metadata = this.lastSyncedFileList.get(filename);
-            metadata[2] = 0L;
-            this.lastSyncedFileList.replace(filename, metadata);
+        } else if (modification != null) {
+            //else, the file is now synced at the queued version
+            this.lastSyncedFileList.replace(filename, new Long[]{(long) ((byte[]) modification[3]).length,
+                    (Long) modification[2], 0L});
+        }
+
+        //remove the file from locked list
+        this.lockedFiles.drained(lease);
+        this.lockHoldTime.recordSince(lease.lockedAt);
+    }
+
+    /**
+     * Applies the queued changes of the leases released since the last call
+     *
+     * @return number of leases drained
+     */
+    public synchronized int drainReleasedLeases(String directory) {
+        int drained = 0;
+        FileLease lease;
+        while ((lease = this.releasedLeases.poll()) != null) {
+            this.processQueuedChanges(directory, lease);
+            drained++;
         }
+        return drained;
     }
 
-    public void clientHandler(Socket socket, String directory, DataInputStream inStream, DataOutputStream outStream) {
+    /**
+     * Locks a file: until it is unlocked or its lease expires, changes of the file on server B are queued instead of
+     * written to server A. Lock free (unlocked -> locked in the lock table), it does not wait for a synchronization cycle.
+     *
+     * @param fileIndex index of the file as specified by user.
+     * @param owner     connection of the client asking for the lock
+     * @return the granted lease, null if the index is out of range or the file is already locked
+     */
+    public FileLease lockFile(int fileIndex, String owner) {
+        String filename = this.getFilenameByIndex(fileIndex);
+        //if their index is out of range, send response
+        if (filename == null) {
+            Log.warn("File index out of range.");
+            return null;
+        }
 
-        //set client output stream (writer)
-        DataOutputStream clientOutputStream = null;
-        DataInputStream clientInputStream = null;
-        try {
-            clientOutputStream = new DataOutputStream(socket.getOutputStream());
+        //lock the file, unless someone else holds or is draining it
+        FileLease lease = this.lockedFiles.tryLock(filename, owner, this.leaseTtl);
+        if (lease == null) {
+            FileLease holder = this.lockedFiles.get(filename);
+            Log.warn("File already locked {} by {}", filename, holder == null ? "a client that just unlocked it" : holder.owner);
+            return null;
+        }
 
-            //set client input stream (writer)
-            clientInputStream = new DataInputStream(socket.getInputStream());
+        Log.info("File locked successfully {} with fencing token {}", filename, lease.token);
+        return lease;
+    }
+
+    /**
+     * Unlocks a file (locked -> draining). The synchronization thread applies the changes queued while it was
+     * locked right after, then the file is unlocked.
+     *
+     * @param filename   leased filename, empty to unlock by index
+     * @param fileIndex  index of the file as specified by user, used when no filename is given
+     * @param token      fencing token of the lease, 0 if unknown: only the connection holding the lease may then unlock
+     * @param connection connection the request came from
+     */
+    public void unlockFile(String filename, int fileIndex, long token, String connection) {
+        if (filename.isEmpty()) {
+            filename = this.getFilenameByIndex(fileIndex);
+            //if their index is out of range, send response
+            if (filename == null) {
+                Log.warn("File index out of range");
+                return;
+            }
+        }
 
+        //check if file is in the lock
+        FileLease lease = this.lockedFiles.get(filename);
+        if (lease == null) {
+            Log.warn("File not locked. You requested to unlock file that is not locked");
+        } else if (token != 0 && token != lease.token) {
+            this.lockRequestsFenced.increment();
+            Log.warn("Unlock of {} rejected, fencing token {} is not the one of the current lease", filename, token);
+        } else if (token == 0 && !lease.owner.equals(connection)) {
+            this.lockRequestsFenced.increment();
+            Log.warn("Unlock of {} without a fencing token rejected, {} does not hold the lease", filename, connection);
+        } else if (lease.release()) {
+            this.releasedLeases.add(lease);
+            this.scheduler.trigger();
+            Log.info("File {} unlocked", filename);
+        }
+    }
+
+    /**
+     * Extends the lease of a file. Lock free, it does not wait for a synchronization cycle.
+     *
+     * @return false if the file is not leased with this token anymore
+     */
+    public boolean renewLease(String filename, long token) {
+        FileLease lease = this.lockedFiles.get(filename);
+        if (lease != null && lease.renew(token, System.nanoTime())) {
+            this.leaseRenewals.increment();
+            return true;
+        }
+        this.lockRequestsFenced.increment();
+        return false;
+    }
+
+    /**
+     * Expires the leases that were not renewed in time (locked -> draining), the synchronization thread then
+     * applies their queued changes
+     *
+     * @return number of expired leases
+     */
+    public int expireLeases() {
+        int[] expired = {0};
+        long now = System.nanoTime();
+        this.lockedFiles.forEach(lease -> {
+            if (lease.expire(now)) {
+                Log.warn("Lease of {} held by {} expired, applying {} queued changes", lease.filename, lease.owner,
+                        lease.modifications.size());
+                this.releasedLeases.add(lease);
+                this.leasesExpired.increment();
+                expired[0]++;
+            }
+        });
+        return expired[0];
+    }
+
+    /**
+     * Expires leases every quarter of their time to live and starts a cycle to drain them when any did
+     */
+    public void leaseReaper() {
+        try {
             while (true) {
+                Thread.sleep(Math.max(this.leaseTtl / 4, 100));
+                if (this.expireLeases() > 0) {
+                    this.scheduler.trigger();
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.error("Lease expiry stopped", e);
+        }
+    }
+
+    /**
+     * Answer to a LOCKFILE or a failed RENEWLOCK: LEASE:token:ttl-milliseconds:filename\n.
+     * A token of 0 means the lock was refused or the lease is lost.
+     */
+    byte[] leaseReply(FileLease lease, String filename) {
+        String reply = lease == null ? "LEASE:0:0:" + filename : "LEASE:" + lease.token + ":" + this.leaseTtl + ":" + filename;
+        return (reply + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Serializes the synchronized inventory for the clients, with the lock flags of the lock table, and hands it to
+     * the outbox of every client if it has changed. Clients that stopped reading are disconnected
+     *
+     * @param inventory synchronized inventory
+     */
+    public void publishListing(Map<String, Long[]> inventory) {
+        TreeMap<String, Long[]> listing = new TreeMap<>();
+        for (Map.Entry<String, Long[]> file : inventory.entrySet()) {
+            Long[] metadata = file.getValue();
+            listing.put(file.getKey(), new Long[]{metadata[0], metadata[1],
+                    this.lockedFiles.isLocked(file.getKey()) ? 1L : 0L});
+        }
+        byte[] data = this.serializeFiles(listing);
+        //already sorted but case sensitive, so nearly in order
+        String[] files = listing.keySet().toArray(new String[0]);
+        Arrays.sort(files, String.CASE_INSENSITIVE_ORDER);
+
+        synchronized (this.listingLock) {
+            if (Arrays.equals(data, this.listingData)) {
+                return;
+            }
+            this.listingData = data;
+            this.listedFiles = files;
+            long now = System.nanoTime();
+            for (Iterator<Object[]> iterator = this.clientOutboxes.iterator(); iterator.hasNext(); ) {
+                Object[] client = iterator.next();
+                ClientOutbox outbox = (ClientOutbox) client[0];
+                outbox.listing(data);
+                //a client that stopped reading only gets its listings replaced, disconnect it
+                if (outbox.isStalled(now)) {
+                    iterator.remove();
+                    this.disconnectStalled(outbox, (Socket) client[1], (String) client[2]);
+                }
+            }
+        }
+    }
+
+    void disconnectStalled(ClientOutbox outbox, Socket socket, String connection) {
+        Log.warn("Client {} stopped reading, disconnecting", connection);
+        this.clientsStalled.increment();
+        outbox.close();
+        try {
+            //fails the blocked write and the read of the client handler
+            socket.close();
+        } catch (IOException e) {
+            Log.debug("Closing {} failed: {}", connection, e.toString());
+        }
+    }
+
+    /**
+     * Connects to server B and runs the synchronization cycles, when the scheduler says so, publishing the listing
+     * after each one. When the connection is lost it reconnects, after a delay that grows with every failed attempt;
+     * interrupted transfers resume from their checkpoints and the next cycle finds whatever else is left to do.
+     * Clients stay connected meanwhile: they keep the last listing, and unlocked files are still drained.
+     */
+    public void syncLoop(String directory, String address, int port) {
+        long delay = MIN_RECONNECT_DELAY;
+        long lostAt = 0; //System.nanoTime the connection was lost, 0 before the first connection
+        while (true) {
+            Socket socket = null;
+            try {
+                Log.info("Connecting to server B");
+                //opened as a channel, frames are sent with gathering writes
+                socket = SocketChannel.open(new InetSocketAddress(address, port)).socket();
+                FrameWriter outStream = new FrameWriter(socket.getChannel(), this.metrics, "server_b");
+                //server B reports changes of its directory between cycles (LISTINGCHANGED), they start a cycle
+                ServerBInput input = new ServerBInput(new Metrics.CountingInputStream(
+                        socket.getInputStream(), this.serverBBytesIn), this.scheduler::trigger);
+                DataInputStream inStream = new DataInputStream(input);
+                input.listen("server B");
+                this.serverBChannel = new Metrics.CountingChannel(socket.getChannel(), this.serverBBytesIn);
+                //the first heartbeat asks server B for its heartbeats
+                outStream.write(Heartbeat.FRAME);
+                Heartbeat.start(socket, outStream, () -> {
+                    try {
+                        return this.serverBBytesIn.get() + inStream.available();
+                    } catch (IOException e) {
+                        return -1;
+                    }
+                }, "server B");
+                this.serverBConnected = true;
+                Log.info("Connection to server B established");
+                if (lostAt != 0) {
+                    this.serverBOutage.recordSince(lostAt);
+                }
+                delay = MIN_RECONNECT_DELAY;
+
+                this.resumeOffsetsB = this.getResumeOffsets(inStream, outStream);
+                while (true) {
+                    input.setIdle(true);
+                    this.scheduler.awaitNextCycle();
+                    input.setIdle(false);
+                    long started = System.nanoTime();
+                    this.drainReleasedLeases(directory);
+                    this.publishListing(this.syncInventories(directory, inStream, outStream));
+                    long wait = this.scheduler.cycleCompleted(System.nanoTime() - started, this.cycleChanges);
+                    if (!this.transfers.isEmpty()) {
+                        //clients have the listing of this slice, the next one starts right away
+                        this.scheduler.trigger();
+                        wait = 0;
+                    }
+                    Log.debug("{} changes in this cycle, next cycle in {} ms", this.cycleChanges, wait);
+                }
+            } catch (IOException | UncheckedIOException e) {
+                if (this.serverBConnected) {
+                    Log.warn("Connection to server B lost: {}", e.toString());
+                } else {
+                    Log.info("Server B unreachable: {}", e.toString());
+                }
+            } catch (InterruptedException e) {
+                Log.error("Synchronization stopped", e);
+                return;
+            } finally {
+                if (socket != null) {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+
+            if (this.serverBConnected) {
+                this.serverBConnected = false;
+                this.serverBFailures.increment();
+                lostAt = System.nanoTime();
+                this.abandonCycle();
+            }
+            try {
+                //jittered, so the shards of a cluster do not all reconnect at once
+                long wait = delay / 2 + (long) (Math.random() * delay);
+                Log.info("Reconnecting to server B in {} ms", wait);
+                this.awaitReconnect(directory, wait);
+                delay = Math.min(delay * 2, MAX_RECONNECT_DELAY);
+            } catch (InterruptedException e) {
+                Log.error("Synchronization stopped", e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return true if the cycle has used up its time or byte budget
+     */
+    boolean isOverBudget(long cycleStarted, long bytesAtStart) {
+        return (this.cycleBudget > 0 && System.nanoTime() - cycleStarted >= this.cycleBudget * 1_000_000)
+                || (this.cycleBudgetBytes > 0
+                && this.uploadedBytes.get() + this.downloadedBytes.get() - bytesAtStart >= this.cycleBudgetBytes);
+    }
+
+    /**
+     * Drops what the interrupted cycle had left to do. Files it had yet to transfer for the first time are no
+     * longer counted as synchronized, the next cycle transfers them again (and does not take them for deletions).
+     */
+    void abandonCycle() {
+        //a first comparison cut short has seeded part of the last synced file list only, the next one seeds it again
+        if (this.seedingFromB) {
+            this.lastSyncedFileList.clear();
+            this.seedingFromB = false;
+        }
+        this.transfers.clear();
+        this.uploadBatch.take();
+        this.downloadBatch.take();
+        this.deleteBatch.take();
+        for (Object[] placeholder : this.placeholders) {
+            this.lastSyncedFileList.remove((String) placeholder[0], placeholder[1]);
+        }
+        this.placeholders.clear();
+    }
+
+    /**
+     * Waits before reconnecting to server B. Unlocked files are still drained and the listing published meanwhile
+     */
+    void awaitReconnect(String directory, long millis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+        long now;
+        while ((now = System.currentTimeMillis()) < deadline) {
+            this.scheduler.awaitTrigger(deadline - now);
+            if (this.drainReleasedLeases(directory) > 0) {
+                this.publishListing(this.lastSyncedFileList);
+            }
+        }
+    }
+
+    public void clientHandler(Socket socket, String directory) {
 
-                //1) check if client sent a message
-                if (clientInputStream.available() > 0) {
-                    TreeMap<String, Object> res = this.deserializeData(clientInputStream);
-
-
-                    if (res.getOrDefault("command", "").equals(COMMAND.LOCKFILE.name())) {
-                        //if the user want to lock a file
-                        int fileIndex = Integer.parseInt(new String((byte[]) res.get("data")));
-                        System.out.println("Received a new request to lock a file at index " + fileIndex);
-
-                        //if their index is out of range, send response
-                        if (fileIndex >= this.lastSyncedFileList.size()) {
-                            System.err.println("File index out of range.\n");
-                            continue; //don't execute the rest of logic
-                        }
-
-                        String filename = this.getFilenameByIndex(fileIndex);
-
-                        //check if its already locked
-                        if (this.lockedFiles.containsKey(fileIndex)) {
-                            System.err.println("File already locked " + filename);
-                        } else {
-                            //lock the file
-                            LinkedBlockingDeque<Object[]> modifications = new LinkedBlockingDeque<>();
-                            this.lockedFiles.put(fileIndex, modifications);
-                            //set the lock flag
-                            Long[] metadata = this.lastSyncedFileList.get(filename);
-                            metadata[2] = 1L;
-                            this.lastSyncedFileList.replace(filename, metadata);
-
-                            System.out.println("File locked successfully " + filename);
-                        }
-
-                    } else if (res.getOrDefault("command", "").equals(COMMAND.UNLOCKFILE.name())) {
-                        //if the user want to unlock a file
-                        int fileIndex = Integer.parseInt(new String((byte[]) res.get("data")));
-
-                        System.out.println("Received request to unlock file on index " + fileIndex);
-
-                        //if their index is out of range, send response
-                        if (fileIndex >= this.lastSyncedFileList.size()) {
-                            System.err.println("File index out of range");
-                            continue; //don't execute the rest of loop logic
-                        }
-
-                        //check if file is in the lock
-                        if (!this.lockedFiles.containsKey(fileIndex)) {
-                            System.err.println("File not locked. You requested to unlock file that is not locked ");
-                        } else {
-                            this.processQueuedChanges(directory, fileIndex);
-                            System.out.println("File at index " + fileIndex + " unlocked");
-                        }
+        //set client output stream (writer)
+        FrameWriter clientOutputStream = null;
+        DataInputStream clientInputStream = null;
+        FrameReader frames = null;
+        String connection = "client_" + Metrics.connectionName(socket.getRemoteSocketAddress());
+        this.connectedClients.incrementAndGet();
+        ClientOutbox outbox = null;
+        Object[] client = null;
+        try {
+            clientOutputStream = new FrameWriter(socket.getChannel(), this.metrics, connection);
+
+            //set client input stream (writer), buffered so the handler can wait for the next command
+            clientInputStream = new DataInputStream(new BufferedInputStream(new Metrics.CountingInputStream(
+                    socket.getInputStream(), this.metrics.counter(connection + "_bytes_in"))));
+            frames = new FrameReader(clientInputStream);
+
+            //frames to the client are written by a thread of their own, this one never blocks on the client
+            final ClientOutbox clientOutbox = new ClientOutbox(clientOutputStream, this.metrics);
+            outbox = clientOutbox;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        clientOutbox.drain();
+                    } catch (IOException | InterruptedException e) {
+                        //the client went away, or was disconnected
+                        Log.debug("Writing to {} stopped: {}", connection, e.toString());
                     }
                 }
+            }).start();
+
+            //from now on publishListing hands every new listing to the outbox, starting with the current one
+            client = new Object[]{outbox, socket, connection};
+            synchronized (this.listingLock) {
+                this.clientOutboxes.add(client);
+                if (this.listingData != null) {
+                    outbox.listing(this.listingData);
+                }
+            }
 
-                //2) Synchronize the directory listings
-                List<Map.Entry<String, Long[]>> sortedList = sort(this.syncInventories(directory, inStream, outStream));
+            while (!outbox.isClosed()) {
+                //1) wait for the next command of the client
+                clientInputStream.mark(1);
+                if (clientInputStream.read() < 0) {
+                    break;
+                }
+                clientInputStream.reset();
 
-                //client expect treemap, so:
-                TreeMap<String, Long[]> inventory = new TreeMap<>();
-                for (Map.Entry<String, Long[]> entry : sortedList) {
-                    inventory.put(entry.getKey(), entry.getValue());
+                //disconnect a client that stopped reading, its replies would only pile up
+                if (outbox.isStalled(System.nanoTime())) {
+                    synchronized (this.listingLock) {
+                        this.clientOutboxes.remove(client);
+                    }
+                    this.disconnectStalled(outbox, socket, connection);
+                    break;
                 }
 
-                //3) Send the data to the client
-                String clientData = this.serializeFiles(inventory);
-                clientOutputStream.writeBytes(clientData.length() + "\n" + clientData);
+                //2) handle it, the header is parsed in place and a heartbeat only allocates its filename
+                frames.next();
 
-                //sleep for 5 seconds
-                Thread.sleep(5000);
-                System.out.println(); //separate each cycle log
+                if (frames.is(COMMAND.RENEWLOCK.name())) {
+                    //heartbeat of a lease holder, only answered if the lease is lost
+                    frames.skipData();
+                    String filename = frames.filename();
+                    if (!this.renewLease(filename, frames.timestamp())) {
+                        Log.warn("Lease of {} not renewed for {}", filename, connection);
+                        outbox.reply(this.leaseReply(null, filename));
+                    }
+
+                } else if (frames.is(COMMAND.LOCKFILE.name())) {
+                    //if the user want to lock a file
+                    int fileIndex = Integer.parseInt(new String(frames.data()));
+                    Log.info("Received a new request to lock a file at index {}", fileIndex);
+                    FileLease lease = this.lockFile(fileIndex, connection);
+                    outbox.reply(this.leaseReply(lease, lease == null ? "" : lease.filename));
+                    this.publishListing(this.lastSyncedFileList); //show the lock flag right away
+
+                } else if (frames.is(COMMAND.UNLOCKFILE.name())) {
+                    //if the user want to unlock a file
+                    int fileIndex = Integer.parseInt(new String(frames.data()));
+                    Log.info("Received request to unlock file on index {}", fileIndex);
+                    this.unlockFile(frames.filename(), fileIndex, frames.timestamp(), connection);
+
+                } else {
+                    Log.warn("Unknown command {} from {}", frames.command(), connection);
+                    frames.skipData();
+                }
+            }
+            Log.info("Client connection {} closed", connection);
+        } catch (IOException e) {
+            if (outbox != null && outbox.isClosed()) {
+                //disconnected for not reading, or the writer thread found the client gone
+                Log.info("Client connection {} closed", connection);
+            } else {
+                Log.error("Client connection {} closed", connection, e);
             }
-        } catch (IOException | InterruptedException e) {
-            e.printStackTrace();
         } finally {
+            if (outbox != null) {
+                outbox.close();
+            }
+            synchronized (this.listingLock) {
+                this.clientOutboxes.remove(client);
+            }
+            this.connectedClients.decrementAndGet();
+            this.metrics.remove(connection + "_bytes_out");
+            this.metrics.remove(connection + "_bytes_in");
             try {
-
-                if (clientOutputStream != null) {
-                    clientOutputStream.close();
-                }
+                //closes the channel the frame writer writes to
                 if (socket != null) {
                     socket.close();
                 }
-                if (clientOutputStream != null) {
-                    clientOutputStream.close();
-                }
                 if (clientInputStream != null) {
                     clientInputStream.close();
                 }
@@ -648,42 +1644,130 @@ public class ServerA {
         int portServerA = 8080; //this server port
 
         //directory path for server A
-        final String serverDirectory = "/home/murage/Desktop/directory_a/";
+        String directoryServerA = "/home/murage/Desktop/directory_a/";
 
         int portServerB = 2500; //port for server B
         String addressServerB = "localhost"; // address for server B
 
         ServerA server = new ServerA();
 
-        ServerSocket serverSocket = null;
-        Socket clientSocketB = null; //Socket used for server A and server B interaction
+        //run as one shard of a cluster: -shard <index>/<count> (may be placed anywhere)
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        int shardOption = arguments.indexOf("-shard");
+        if (shardOption >= 0) {
+            String[] shard = arguments.get(shardOption + 1).split("/");
+            server.shardIndex = Integer.parseInt(shard[0]);
+            server.shardCount = Integer.parseInt(shard[1]);
+            arguments.remove(shardOption + 1);
+            arguments.remove(shardOption);
+            Log.info("Running as shard {} of {}", server.shardIndex, server.shardCount);
+        }
 
+        //serve the metrics as text over HTTP: -metrics <port> (may be placed anywhere)
+        int metricsOption = arguments.indexOf("-metrics");
+        if (metricsOption >= 0) {
+            try {
+                server.metrics.startHttpServer(Integer.parseInt(arguments.get(metricsOption + 1)));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            arguments.remove(metricsOption + 1);
+            arguments.remove(metricsOption);
+        }
 
-        try {
-            //1) Connect to server B
-            System.out.println("Connecting to server B");
-            clientSocketB = new Socket(addressServerB, portServerB);
-            System.out.println("Connection to server B established");
+        //time a file lock lasts without renewal: -lease <seconds> (may be placed anywhere)
+        int leaseOption = arguments.indexOf("-lease");
+        if (leaseOption >= 0) {
+            server.leaseTtl = Long.parseLong(arguments.get(leaseOption + 1)) * 1000;
+            arguments.remove(leaseOption + 1);
+            arguments.remove(leaseOption);
+        }
 
-            System.out.println("Creating binary streams for server B connection");
+        //work of a cycle before the listing is published: -budget <milliseconds>, -budgetmb <megabytes>
+        //(may be placed anywhere, 0 - unlimited)
+        int budgetOption = arguments.indexOf("-budget");
+        if (budgetOption >= 0) {
+            server.cycleBudget = Long.parseLong(arguments.get(budgetOption + 1));
+            arguments.remove(budgetOption + 1);
+            arguments.remove(budgetOption);
+        }
+        int budgetBytesOption = arguments.indexOf("-budgetmb");
+        if (budgetBytesOption >= 0) {
+            server.cycleBudgetBytes = Long.parseLong(arguments.get(budgetBytesOption + 1)) * 1024 * 1024;
+            arguments.remove(budgetBytesOption + 1);
+            arguments.remove(budgetBytesOption);
+        }
 
-            //setup input stream for receiving data from server B
-            final DataOutputStream serverBOutputStream = new DataOutputStream(clientSocketB.getOutputStream());
-            //setup input stream for sending data from server B
-            final DataInputStream serverBInputStream = new DataInputStream(clientSocketB.getInputStream());
+        //files materialized from a local copy may be hard links: -hardlinks (may be placed anywhere)
+        boolean hardLinks = arguments.remove("-hardlinks");
+        server.metrics.registerMBean(server.shardCount > 1 ? "ServerA-shard" + server.shardIndex : "ServerA");
+        args = arguments.toArray(new String[0]);
 
-            serverSocket = new ServerSocket(portServerA);
-            System.out.println("Server A started. Ready to accept connections");
+        //optional overrides: ServerA <port> <directory> <server-b-address:port> [<replica-address:port> ...]
+        if (args.length > 0) {
+            portServerA = Integer.parseInt(args[0]);
+        }
+        if (args.length > 1) {
+            directoryServerA = args[1];
+        }
+        if (args.length > 2) {
+            addressServerB = args[2].substring(0, args[2].lastIndexOf(':'));
+            portServerB = Integer.parseInt(args[2].substring(args[2].lastIndexOf(':') + 1));
+        }
+        final String serverDirectory = directoryServerA;
+        server.contentIndex = new ContentIndex(serverDirectory);
+        server.contentIndex.hardLinks = hardLinks;
+
+        //every further argument is a replica that mirrors this server directory
+        for (int i = 3; i < args.length; i++) {
+            String address = args[i].substring(0, args[i].lastIndexOf(':'));
+            int port = Integer.parseInt(args[i].substring(args[i].lastIndexOf(':') + 1));
+            ReplicaLink replica = new ReplicaLink(address, port, server, serverDirectory);
+            server.replicas.add(replica);
+
+            Thread replicaThread = new Thread(replica);
+            replicaThread.setDaemon(true);
+            replicaThread.start();
+        }
 
-            //2) Launch server and start accepting connections (unlimited clients)
+        ServerSocket serverSocket = null;
+        final String serverBAddress = addressServerB;
+        final int serverBPort = portServerB;
+
+        try {
+            //1-2) Connect to server B (and reconnect whenever the connection is lost) and synchronize on a single
+            //thread, paced by the scheduler. Changes made to the directory start a cycle right away
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    server.syncLoop(serverDirectory, serverBAddress, serverBPort);
+                }
+            }, "sync").start();
+            DirectoryWatcher.watch(serverDirectory, server.scheduler::trigger);
+
+            //leases that are not renewed (e.g. the client disconnected) expire and apply their queued changes
+            Thread leaseThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    server.leaseReaper();
+                }
+            }, "lease-reaper");
+            leaseThread.setDaemon(true);
+            leaseThread.start();
+
+            //accepted sockets have a channel for the frame writers
+            serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(portServerA)).socket();
+            Log.info("Server A started. Ready to accept connections");
+
+            //3) Launch server and start accepting connections (unlimited clients)
             while (true) {
                 final Socket clientSocket = serverSocket.accept();
-                System.out.println("New client connected to server A with address: " + clientSocket.getRemoteSocketAddress());
+                Log.info("New client connected to server A with address: {}", clientSocket.getRemoteSocketAddress());
 
                 new Thread(new Runnable() {
                     @Override
                     public void run() {
-                        server.clientHandler(clientSocket, serverDirectory, serverBInputStream, serverBOutputStream);
+                        server.clientHandler(clientSocket, serverDirectory);
                     }
                 }).start();
             }
@@ -691,11 +1775,8 @@ public class ServerA {
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
-            System.out.println("Cleanup");
+            Log.info("Cleanup");
             try {
-                if (clientSocketB != null) {
-                    clientSocketB.close();
-                }
                 if (serverSocket != null) {
                     serverSocket.close();
                 }
@@ -1,13 +1,27 @@
 package com.mimidots.lab3;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ServerB {
+    //Incremented whenever the directory changes, so a cached listing of an older version is never served
+    final AtomicLong directoryVersion = new AtomicLong();
+
+    //Hash tree of the last directory scan, only served while its version matches the directory version
+    volatile Listing cachedListing = null;
 
     static enum COMMAND {
         GETLISTING, //request for directory listing data
@@ -15,33 +29,108 @@ public class ServerB {
         FILEUPLOAD, //sending file to a server (upload)
         FILEREQUEST, //requesting for a file (download)
         FILEDELETE, //requesting for a file to be deleted
+        GETTREEHASH, //request for hashes of inventory tree nodes
+        TREEHASH, //response with hashes of inventory tree nodes
+        GETBUCKETLISTING, //request for the directory listing of some inventory tree buckets
+        LISTINGPAGE, //response with one page of directory listing data, more pages follow
+        GETRESUMEOFFSETS, //request for the checkpoints of interrupted transfers
+        RESUMEOFFSETS, //response with the checkpoints of interrupted transfers
+        FILERESUME, //rest of a file from a checkpoint of an interrupted transfer on
+        HASHREQUEST, //request for the content hash of a file
+        FILEHASH, //response with the content hash of a file
+        MATERIALIZE, //create a file from a local file with the same contents instead of uploading it
+        MATERIALIZED, //response to MATERIALIZE: ok, or missing if no local file has the contents
+        UPLOADBATCH, //sending many small files at once
+        REQUESTBATCH, //requesting many small files at once
+        DELETEBATCH, //requesting many files to be deleted at once
+        FILEBATCH, //response to REQUESTBATCH with the requested files
+        BATCHSTATUS, //response to UPLOADBATCH and DELETEBATCH, one status per item
+        HEARTBEAT, //sent by both ends of a server A - server B connection when they have nothing else to send
+        LISTINGCHANGED, //sent by server B on its own when its directory was changed by someone else
+    }
+
+    //listing pages are cut once they reach this many bytes
+    static final int LISTING_PAGE_SIZE = 64 * 1024;
+
+    //Runtime metrics, exposed over JMX and as text over HTTP (-metrics <port>)
+    final Metrics metrics = new Metrics();
+    final Metrics.Histogram listingBuildTime = metrics.histogram("listing_build_ns");
+    final Metrics.Histogram requestTime = metrics.histogram("request_ns");
+    final Metrics.Histogram transferSize = metrics.histogram("transfer_bytes");
+    final Metrics.Counter sentFileBytes = metrics.counter("sent_file_bytes");
+    final Metrics.Counter receivedFileBytes = metrics.counter("received_file_bytes");
+    final Metrics.Counter transfersResumed = metrics.counter("transfers_resumed");
+    final Metrics.Counter resumedBytes = metrics.counter("resumed_bytes"); //not sent again thanks to a checkpoint
+    final Metrics.Counter filesMaterialized = metrics.counter("files_materialized");
+    final Metrics.Counter materializedBytes = metrics.counter("materialized_bytes"); //not transferred
+
+    //Content hashes of the directory files, set in main
+    ContentIndex contentIndex = null;
+    final Metrics.Counter[] requests = new Metrics.Counter[COMMAND.values().length]; //by command ordinal
+    final AtomicInteger connections = new AtomicInteger();
+    final Metrics.Counter listingChangesPushed = metrics.counter("listing_changes_pushed");
+
+    //Server A connections that heartbeat, told about changes of the directory (LISTINGCHANGED) so they do not poll
+    final Set<FrameWriter> listingSubscribers = ConcurrentHashMap.newKeySet();
+
+    public ServerB() {
+        for (COMMAND command : COMMAND.values()) {
+            requests[command.ordinal()] = metrics.counter("requests_" + command.name().toLowerCase());
+        }
+        metrics.gauge("connections", connections::get);
+        metrics.gauge("directory_version", directoryVersion::get);
+    }
+
+    /**
+     * What is kept of one scan of the directory. Only the hashes, which take the same memory for any number of
+     * files. Listings are streamed from a new scan instead.
+     */
+    static class Listing {
+        final long version; //directory version the scan started at
+        final MerkleTree tree; //hash tree of the inventory
+
+        Listing(long version, MerkleTree tree) {
+            this.version = version;
+            this.tree = tree;
+        }
     }
 
     public void deleteFile(String path) {
         File file = new File(path);
         //ensure the file exists and is a file
         if (file.exists() && file.isFile()) {
+            //a deletion of this server, not reported by the directory watcher
+            DirectoryWatcher.expectWrite(path);
             file.delete();
-            System.out.println("File deleted successfully");
+            Log.debug("File deleted successfully");
         } else {
-            System.out.println("File doesn't seem to exist or is not a file");
+            Log.debug("File doesn't seem to exist or is not a file");
         }
     }
 
     public void writeFileContents(String path, byte[] content, long timestamp) throws IOException {
 
         File file = new File(path);
+        //a write of this server, not reported by the directory watcher
+        DirectoryWatcher.expectWrite(path);
+        //the file may be in a subdirectory that does not exist yet
+        Files.createDirectories(file.toPath().getParent());
+        //a hard link (-hardlinks) is replaced, writing into it would change the other names as well
+        if (ContentIndex.isLinked(file.toPath())) {
+            file.delete();
+        }
 
         try (FileOutputStream stream = new FileOutputStream(file)) {
             stream.write(content);
             file.setLastModified(timestamp);
         }
+        DirectoryWatcher.expectWrite(path);
     }
 
     public byte[] readFileContents(String path) throws IOException {
         File file = new File(path);
         if (!file.exists() && file.canRead()) {
-            System.out.println("Cannot locate or read the file: " + path);
+            Log.warn("Cannot locate or read the file: {}", path);
         }
 
         return Files.readAllBytes(Paths.get(path));
@@ -50,68 +139,194 @@ public class ServerB {
     public long getFileTimestamp(String path) {
         File file = new File(path);
         if (!file.exists() && file.canRead()) {
-            System.out.println("Cannot locate or read the file: " + path);
+            Log.warn("Cannot locate or read the file: {}", path);
         }
         return file.lastModified();
     }
 
+    /**
+     * Lists every file in the directory and its subdirectories. Subdirectories are scanned in parallel.
+     *
+     * @param path directory path
+     * @return map with the file path relative to the directory as key, [file-size,file-timestamp,file-lock-flag]
+     */
     public TreeMap<String, Long[]> listDirectoryInventory(String path) {
-        File folder = new File(path);
-        File[] fileList = folder.listFiles();
-
-        TreeMap<String, Long[]> fileMap = new TreeMap<>();
-        for (File file : fileList) {
-            //name as the key, [file-size,file-timestamp,file-lock-flag]
-            fileMap.put(file.getName(), new Long[]{file.length(), file.lastModified(), 0L});
-        }
-        return fileMap;
+        return DirectoryWalker.walk(path);
     }
 
 
     /**
-     * Serializes a mapped data into a string that can be deserialized later
-     * A single file string output format is
-     * FILENAME:FILELENGTH:FILETIMESTAMP:IFFILEISLOCKEDFLAG
+     * Serializes a mapped data into bytes that can be deserialized later.
+     * See ListingCodec for the binary format (front coded names, variable length numbers)
      *
      * @param files A map of files metadata
-     * @return serialized string data
+     * @return serialized listing
      */
-    public String serializeFiles(TreeMap<String, Long[]> files) {
-        StringBuilder builder = new StringBuilder();
-        String delimiter = ":"; //we will use a delimiter than cannot conflict with filename
+    public byte[] serializeFiles(TreeMap<String, Long[]> files) {
+        return ListingCodec.encode(files);
+    }
 
-        for (String filename : files.keySet()) {
-            builder.append(filename + delimiter + files.get(filename)[0] + delimiter +
-                    files.get(filename)[1] + delimiter + files.get(filename)[2] + "\n");
+    /**
+     * Sends files as listing frames of bounded size, so no single large buffer is needed on either end. Each page
+     * is sent as soon as it is full, only one is held at a time.
+     * Every frame but the last is a LISTINGPAGE, the last one (possibly empty) is a FOLDERLISTING that tells the
+     * receiver the listing is complete. Pages keep the filename order of the files.
+     *
+     * @param files        files metadata, sorted by filename
+     * @param outputStream server A connection
+     * @return number of pages sent
+     */
+    public int writeFilePages(Iterable<Map.Entry<String, Long[]>> files, FrameWriter outputStream) throws IOException {
+        int pages = 1;
+        //every page is encoded on its own, so it can be decoded without the previous ones
+        ListingCodec.Encoder encoder = new ListingCodec.Encoder();
+
+        for (Map.Entry<String, Long[]> file : files) {
+            encoder.add(file.getKey(), file.getValue());
+
+            if (encoder.size() >= LISTING_PAGE_SIZE) {
+                outputStream.writeFrame(COMMAND.LISTINGPAGE.name(), encoder.toByteArray(), "", 0L);
+                encoder.reset();
+                pages++;
+            }
         }
-        return builder.toString();
+        outputStream.writeFrame(COMMAND.FOLDERLISTING.name(), encoder.toByteArray(), "", 0L);
+        return pages;
     }
 
     /**
-     * Deserializes a string into a mapped data
+     * Deserializes a listing into a mapped data
      * A single mapped file output contains
      * filename as key
      * Array of long containing [file-length, file-timestamp,if-file-is-locked-flag]
      *
-     * @param data: A serialized string data
+     * @param data: A serialized listing
      * @return a map of deserialized files metadata
      */
-    public TreeMap<String, Long[]> deserializeFiles(String data) {
-        String metaDelimiter = ":";
-        TreeMap<String, Long[]> fileMap = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    public TreeMap<String, Long[]> deserializeFiles(byte[] data) throws IOException {
+        //natural (case sensitive) order, the order of the directory inventories
+        return ListingCodec.decode(data, new TreeMap<>());
+    }
+
+    /**
+     * Marks the cached directory listing as outdated. Called after every change made by server B itself
+     * and by the directory watcher for changes made by anyone else.
+     */
+    public void invalidateListing() {
+        directoryVersion.incrementAndGet();
+    }
+
+    /**
+     * Returns the hash tree of the directory. The directory is only scanned again if it has changed since
+     * the cached tree was built, otherwise the cached tree is returned as is.
+     *
+     * @param directory Server B directory
+     * @return current directory listing
+     */
+    public Listing getListing(String directory) throws IOException {
+        Listing listing = cachedListing;
+        if (listing != null && listing.version == directoryVersion.get()) {
+            return listing;
+        }
+
+        synchronized (this) {
+            //another connection may have rebuilt the listing while we were waiting
+            listing = cachedListing;
+            if (listing != null && listing.version == directoryVersion.get()) {
+                return listing;
+            }
+            scan(directory);
+            return cachedListing;
+        }
+    }
+
+    /**
+     * Scans the directory and caches the hash tree of the scan, unless the cached one is already as recent
+     *
+     * @param directory Server B directory
+     * @return inventory of the scan, only held by the caller
+     */
+    public synchronized TreeMap<String, Long[]> scan(String directory) {
+        //take the version before scanning so that changes made during the scan invalidate this listing
+        long version = directoryVersion.get();
+        long started = System.nanoTime();
+        TreeMap<String, Long[]> files = listDirectoryInventory(directory);
+        Listing listing = cachedListing;
+        if (listing == null || listing.version != version) {
+            cachedListing = new Listing(version, new MerkleTree(files));
+            Log.info("Directory listing rebuilt. {} files", files.size());
+        }
+        listingBuildTime.recordSince(started);
+        return files;
+    }
 
+    /**
+     * Hashes of inventory tree nodes
+     *
+     * @param directory Server B directory
+     * @param nodeList  comma separated node numbers
+     * @return comma separated hashes, in the order of the node numbers
+     */
+    public String getTreeHashes(String directory, String nodeList) throws IOException {
+        MerkleTree tree = getListing(directory).tree;
+        StringBuilder builder = new StringBuilder();
+        for (String node : nodeList.split(",")) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(tree.hash(Integer.parseInt(node)));
+        }
+        return builder.toString();
+    }
 
-        //split by end of line to get each file representation
-        String[] fileMeta = data.split("\n");
+    /**
+     * Directory listing limited to some inventory tree buckets, from a new scan of the directory
+     *
+     * @param directory  Server B directory
+     * @param bucketList comma separated bucket indexes
+     * @return files of the buckets, sorted by filename
+     */
+    public List<Map.Entry<String, Long[]>> getBucketListing(String directory, String bucketList) {
+        boolean[] requested = new boolean[MerkleTree.LEAVES];
+        for (String bucket : bucketList.split(",")) {
+            requested[Integer.parseInt(bucket)] = true;
+        }
+        List<Map.Entry<String, Long[]>> files = new ArrayList<>();
+        for (Map.Entry<String, Long[]> file : scan(directory).entrySet()) {
+            if (requested[MerkleTree.bucketOf(file.getKey())]) {
+                files.add(file);
+            }
+        }
+        return files;
+    }
 
+    /**
+     * Watches the directory tree for changes made outside server B (e.g. by a user), invalidates the cached listing
+     * and tells server A
+     *
+     * @param directory Server B directory
+     */
+    public void watchDirectory(String directory) throws IOException {
+        //any event (including an overflow) but those of server B's own writes means the listing has to be rebuilt
+        DirectoryWatcher.watch(directory, this::directoryChanged);
+    }
 
-        //for each file meta, expand it
-        for (String meta : fileMeta) {
-            String[] f = meta.split(metaDelimiter);
-            //the key represent the filename
-            fileMap.put(f[0], new Long[]{Long.valueOf(f[1]), Long.valueOf(f[2]), Long.valueOf(f[3])});
+    /**
+     * The directory was changed by someone else: sends LISTINGCHANGED to every subscribed server A connection, which
+     * starts a cycle instead of waiting for its next one
+     */
+    public void directoryChanged() {
+        this.invalidateListing();
+        for (FrameWriter subscriber : this.listingSubscribers) {
+            try {
+                subscriber.writeFrame(COMMAND.LISTINGCHANGED.name(), null, "", 0L);
+                this.listingChangesPushed.increment();
+            } catch (IOException e) {
+                //the connection is closing, its handler finds out by itself
+                this.listingSubscribers.remove(subscriber);
+                Log.debug("Cannot notify a server A connection of a change: {}", e.toString());
+            }
         }
-        return fileMap;
     }
 
     /**
@@ -161,6 +376,25 @@ public class ServerB {
      * @throws IOException
      */
     public TreeMap<String, Object> deserializeData(DataInputStream stream) throws IOException {
+        TreeMap<String, Object> content = this.deserializeHeader(stream);
+
+        //5.Extract the data (can be empty)
+        if (content.containsKey("size")) {
+            byte[] data = new byte[(int) (long) (Long) content.get("size")];
+            stream.readFully(data);
+            content.put("data", data);
+        }
+
+        return content;
+    }
+
+    /**
+     * Deserializes the header of a frame, the data is left in the stream (e.g. to stream a file body to disk)
+     *
+     * @param stream Data input stream to read from. Should not be null
+     * @return command, size, filename and timestamp of the frame, empty if no frame has arrived
+     */
+    public TreeMap<String, Object> deserializeHeader(DataInputStream stream) throws IOException {
         TreeMap<String, Object> content = new TreeMap<>();
         char headersSeparator = ':';
         char headersEndSeparator = '\n';
@@ -173,42 +407,42 @@ public class ServerB {
 
         //1. Extract command
         StringBuilder commandBuilder = new StringBuilder();
-        while ((c = (char) stream.read()) != headersSeparator) {
+        while ((c = (char) stream.readUnsignedByte()) != headersSeparator) {
             commandBuilder.append(c);
         }
 
         if (!commandBuilder.isEmpty()) {
             content.put("command", commandBuilder.toString());
-            System.out.println("New command received: " + commandBuilder);
+            Log.debug("New command received: {}", commandBuilder);
         }
 
         //2. Extract size (can be zero)
         StringBuilder sizeBuilder = new StringBuilder();
-        while ((c = (char) stream.read()) != headersSeparator) {
+        while ((c = (char) stream.readUnsignedByte()) != headersSeparator) {
             sizeBuilder.append(c);
         }
 
         long contentSize = Long.valueOf(sizeBuilder.toString());
         if (!sizeBuilder.isEmpty()) {
             content.put("size", contentSize);
-            System.out.println("Received data of size: " + sizeBuilder);
+            Log.debug("Received data of size: {}", sizeBuilder);
 
         }
 
         //3. Extract filename (can be empty)
         StringBuilder filename = new StringBuilder();
-        while ((c = (char) stream.read()) != headersSeparator) {
+        while ((c = (char) stream.readUnsignedByte()) != headersSeparator) {
             filename.append(c);
         }
 
         if (!filename.isEmpty()) {
-            System.out.println("Received file: " + filename);
+            Log.debug("Received file: {}", filename);
             content.put("filename", filename.toString());
         }
 
         //4. Extract timestamp (can be zero)
         StringBuilder timestamp = new StringBuilder();
-        while ((c = (char) stream.read()) != headersEndSeparator) {
+        while ((c = (char) stream.readUnsignedByte()) != headersEndSeparator) {
             timestamp.append(c);
 
         }
@@ -217,119 +451,364 @@ public class ServerB {
             content.put("timestamp", Long.valueOf(timestamp.toString()));
         }
 
-        //5.Extract the data (can be empty)
-
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        while (contentSize != byteArrayOutputStream.size()) {
-            byteArrayOutputStream.write(stream.readByte());
-        }
-
-        content.put("data", byteArrayOutputStream.toByteArray());
-
         return content;
     }
 
 
-    public static void main(String[] args) {
-
-        int portServerB = 2500; //this server port
-
-        //directory path for server B
-        String directoryServerB = "/home/murage/Desktop/directory_b/";
-
-        ServerB server = new ServerB();
-
-        ServerSocket serverSocket = null;
-        Socket socket = null; //Socket used for current server B and server A interaction
-        DataOutputStream outputStream = null; //sending data from server B to A
+    /**
+     * Serves requests of a single server A connection
+     *
+     * @param socket    Server A connection
+     * @param directory Server B directory
+     */
+    public void connectionHandler(Socket socket, String directory) {
+        FrameWriter outputStream = null; //sending data from server B to A
         DataInputStream inputStream = null; //for receiving data from server A
+        String connection = "connection_" + Metrics.connectionName(socket.getRemoteSocketAddress());
+        this.connections.incrementAndGet();
         try {
-            serverSocket = new ServerSocket(portServerB);
-
-            System.out.println("Server B started. Ready to accept connections");
-            System.out.println("Awaiting client to connect to continue");
-            socket = serverSocket.accept();
-
-            System.out.println("New client connected to server B with address: " + socket.getRemoteSocketAddress());
-
-            System.out.println("Creating binary streams for the new connection");
+            Log.debug("Creating binary streams for the new connection");
             //create an output stream for the socket
-            outputStream = new DataOutputStream(socket.getOutputStream());
+            outputStream = new FrameWriter(socket.getChannel(), this.metrics, connection);
             //create an input stream for the socket
-            inputStream = new DataInputStream(socket.getInputStream());
+            Metrics.Counter bytesIn = this.metrics.counter(connection + "_bytes_in");
+            //one byte of pushback to wait for the next frame, without buffering the file bodies read from the channel
+            PushbackInputStream frames = new PushbackInputStream(
+                    new Metrics.CountingInputStream(socket.getInputStream(), bytesIn), 1);
+            inputStream = new DataInputStream(frames);
+            //file bodies are read from the channel, past the counting stream
+            Metrics.CountingChannel channel = new Metrics.CountingChannel(socket.getChannel(), bytesIn);
+            boolean heartbeats = false;
 
             TreeMap<String, Object> response;
 
-            while (socket.isConnected()) { //loop forever while we are connected to server B
+            while (true) { //loop until server A closes the connection
 
-                if (inputStream.available() == 0) { //if there is nothing to process, skip
-                    continue;
+                //block until the next frame starts, the end of the stream ends the connection
+                int next = frames.read();
+                if (next < 0) {
+                    Log.info("Connection {} closed by server A", connection);
+                    break;
+                }
+                frames.unread(next);
+
+                //file bodies of uploads are streamed to disk below, any other body is read now
+                response = this.deserializeHeader(inputStream);
+                boolean upload = response.getOrDefault("command", "").equals(COMMAND.FILEUPLOAD.name())
+                        || response.getOrDefault("command", "").equals(COMMAND.FILERESUME.name());
+                if (!upload && response.containsKey("size")) {
+                    byte[] data = new byte[(int) (long) (Long) response.get("size")];
+                    inputStream.readFully(data);
+                    response.put("data", data);
+                }
+                long started = System.nanoTime();
+                if (response.containsKey("command")) {
+                    try {
+                        this.requests[COMMAND.valueOf((String) response.get("command")).ordinal()].increment();
+                    } catch (IllegalArgumentException e) {
+                        Log.warn("Unknown command {}", response.get("command"));
+                    }
                 }
 
-                response = server.deserializeData(inputStream);
+                //Server A sends heartbeats and wants them back, the connection is closed if it goes quiet
+                if (!heartbeats && response.getOrDefault("command", "").equals(COMMAND.HEARTBEAT.name())) {
+                    heartbeats = true;
+                    this.listingSubscribers.add(outputStream);
+                    final DataInputStream stream = inputStream;
+                    Heartbeat.start(socket, outputStream, () -> {
+                        try {
+                            return bytesIn.get() + stream.available();
+                        } catch (IOException e) {
+                            return -1;
+                        }
+                    }, connection);
+                }
 
                 //1) Get directory listing request
                 if (response.getOrDefault("command", "").equals(COMMAND.GETLISTING.name())) {
-                    System.out.println("Received directory listing request");
-                    //read the directory and return the response
-                    TreeMap<String, Long[]> files = server.listDirectoryInventory(directoryServerB);
+                    Log.debug("Received directory listing request");
+                    //streamed from a new scan, page by page
+                    int pages = this.writeFilePages(this.scan(directory).entrySet(), outputStream);
+                    Log.debug("Current directory listing sent in {} pages", pages);
+                }
 
-                    String data = server.serializeFiles(files); //serialize the files data into a predefined standard
-                    System.out.println("Sending current directory listing. Serialized data size: " + data.length());
-                    outputStream.write(
-                            server.serializeData(COMMAND.FOLDERLISTING.name(), data.getBytes(), "", 0L));
+                //Hashes of inventory tree nodes, so server A only asks for the buckets that differ
+                if (response.getOrDefault("command", "").equals(COMMAND.GETTREEHASH.name())) {
+                    String hashes = this.getTreeHashes(directory, new String((byte[]) response.get("data")));
+                    outputStream.writeFrame(COMMAND.TREEHASH.name(), hashes.getBytes(), "", 0L);
+                }
 
-                    System.out.println("Current directory listing sent");
+                //Listing of the buckets that differ
+                if (response.getOrDefault("command", "").equals(COMMAND.GETBUCKETLISTING.name())) {
+                    int pages = this.writeFilePages(this.getBucketListing(directory,
+                            new String((byte[]) response.get("data"))), outputStream);
+                    Log.debug("Bucket listing sent in {} pages", pages);
                 }
 
-                //2) When server A requests for a file
+                //Checkpoints of interrupted uploads, asked for when a connection starts so they can resume
+                if (response.getOrDefault("command", "").equals(COMMAND.GETRESUMEOFFSETS.name())) {
+                    outputStream.writeFrame(COMMAND.RESUMEOFFSETS.name(),
+                            FileTransfer.listCheckpoints(directory).getBytes(), "", 0L);
+                }
+
+                //2) When server A requests for a file, with the checkpoint of its interrupted download if any:
+                //FILENAME[\nOFFSET:HASH]
                 if (response.getOrDefault("command", "").equals(COMMAND.FILEREQUEST.name())) {
+                    String[] request = new String((byte[]) response.get("data")).split("\n", 2);
+                    String filename = request[0];
+                    Log.debug("Received file download request for {}", filename);
+                    if (!DirectoryWalker.isValidRelativePath(filename)
+                            || !Files.isRegularFile(Paths.get(directory + filename), LinkOption.NOFOLLOW_LINKS)) {
+                        //an empty upload without a timestamp, so server A moves on instead of waiting for the file
+                        Log.warn("Rejected request for {}, invalid path or no such file", filename);
+                        outputStream.writeFrame(COMMAND.FILEUPLOAD.name(), null, "", -1L);
+                    } else {
+                        long offset = request.length < 2 ? 0 : FileTransfer.resumableOffset(directory + filename,
+                                FileTransfer.parseCheckpoint(request[1]));
+
+                        //streamed from the file through a pooled buffer
+                        long size = outputStream.writeFileFrame(offset > 0 ? COMMAND.FILERESUME.name() :
+                                COMMAND.FILEUPLOAD.name(), directory + filename, filename,
+                                this.getFileTimestamp(directory + filename), offset);
+                        if (offset > 0) {
+                            Log.info("Resuming download of {} at {} of {} bytes", filename, offset, size);
+                            this.transfersResumed.increment();
+                            this.resumedBytes.add(offset);
+                        }
+                        this.transferSize.record(size - offset);
+                        this.sentFileBytes.add(size - offset);
+
+                        Log.debug("File sent to the server");
+                    }
+                }
+
+                //Content hash of a file, so server A can look for the same contents among its own files
+                if (response.getOrDefault("command", "").equals(COMMAND.HASHREQUEST.name())) {
                     String filename = new String((byte[]) response.get("data"));
-                    System.out.println("Received file download request for " + filename);
+                    String hash = DirectoryWalker.isValidRelativePath(filename) ?
+                            this.contentIndex.hashOrNull(filename) : null;
+                    outputStream.writeFrame(COMMAND.FILEHASH.name(), (hash == null ? "" : hash).getBytes(),
+                            filename, 0L);
+                }
 
-                    byte[] data = server.readFileContents(directoryServerB + filename);
-                    outputStream.write(server.serializeData(COMMAND.FILEUPLOAD.name(), data, filename,
-                            server.getFileTimestamp(directoryServerB + filename)));
+                //A file server A would upload, if one of the files of this directory has the same contents:
+                //HASH\nSOURCE[\nSOURCE...], the sources being synchronized files of the same size
+                if (response.getOrDefault("command", "").equals(COMMAND.MATERIALIZE.name())) {
+                    String filename = (String) response.get("filename");
+                    String[] lines = new String((byte[]) response.get("data")).split("\n");
+                    List<String> sources = new ArrayList<>();
+                    for (int i = 1; i < lines.length; i++) {
+                        if (DirectoryWalker.isValidRelativePath(lines[i])) {
+                            sources.add(lines[i]);
+                        }
+                    }
+                    String source = DirectoryWalker.isValidRelativePath(filename) ?
+                            this.contentIndex.find(lines[0], sources) : null;
+                    if (source != null) {
+                        this.contentIndex.materialize(source, filename, (Long) response.get("timestamp"));
+                        this.invalidateListing();
+                        this.filesMaterialized.increment();
+                        this.materializedBytes.add(new File(directory + filename).length());
+                        Log.info("Materialized {} from {}", filename, source);
+                    }
+                    outputStream.writeFrame(COMMAND.MATERIALIZED.name(), (source != null ? "ok" : "missing").getBytes(),
+                            filename == null ? "" : filename, 0L);
+                }
+
+                //Many small files at once, answered with a status per file: ok, invalid or error
+                if (response.getOrDefault("command", "").equals(COMMAND.UPLOADBATCH.name())) {
+                    List<Object[]> items = Batch.readItems((byte[]) response.get("data"));
+                    StringBuilder statuses = new StringBuilder();
+                    for (Object[] item : items) {
+                        String filename = (String) item[0];
+                        byte[] data = (byte[]) item[2];
+                        String status = "ok";
+                        if (data == null || !DirectoryWalker.isValidRelativePath(filename)) {
+                            status = "invalid";
+                        } else {
+                            try {
+                                this.writeFileContents(directory + filename, data, (Long) item[1]);
+                                this.receivedFileBytes.add(data.length);
+                            } catch (IOException e) {
+                                Log.warn("Failed to write {} of a batch: {}", filename, e.getMessage());
+                                status = "error";
+                            }
+                        }
+                        statuses.append(status).append('\n');
+                    }
+                    this.invalidateListing();
+                    outputStream.writeFrame(COMMAND.BATCHSTATUS.name(), statuses.toString().getBytes(), "", 0L);
+                    Log.debug("Received a batch of {} files", items.size());
+                }
 
-                    System.out.println("File sent to the server");
+                //Many small files requested at once, sent back in one FILEBATCH (size -1 for a missing file)
+                if (response.getOrDefault("command", "").equals(COMMAND.REQUESTBATCH.name())) {
+                    ByteArrayOutputStream batch = new ByteArrayOutputStream();
+                    for (String filename : new String((byte[]) response.get("data")).split("\n")) {
+                        byte[] data = null;
+                        long timestamp = 0;
+                        if (DirectoryWalker.isValidRelativePath(filename)) {
+                            try {
+                                timestamp = this.getFileTimestamp(directory + filename);
+                                data = Files.readAllBytes(Paths.get(directory + filename));
+                                this.sentFileBytes.add(data.length);
+                            } catch (IOException e) {
+                                Log.debug("Requested file {} cannot be read: {}", filename, e.getMessage());
+                            }
+                        }
+                        Batch.writeItem(batch, filename, timestamp, data);
+                    }
+                    outputStream.writeFrame(COMMAND.FILEBATCH.name(), batch.toByteArray(), "", 0L);
                 }
 
-                //3) When server A uploads a file
-                if (response.getOrDefault("command", "").equals(COMMAND.FILEUPLOAD.name())) {
-                    System.out.println("Received new upload from server A");
-                    server.writeFileContents(directoryServerB + response.get("filename"),
-                            (byte[]) response.get("data"), (Long) response.get("timestamp"));
-                    System.out.println("File successfully written to disk");
+                //Many files to delete at once, answered with a status per file: ok or invalid
+                if (response.getOrDefault("command", "").equals(COMMAND.DELETEBATCH.name())) {
+                    StringBuilder statuses = new StringBuilder();
+                    for (String filename : new String((byte[]) response.get("data")).split("\n")) {
+                        if (!DirectoryWalker.isValidRelativePath(filename)) {
+                            statuses.append("invalid\n");
+                            continue;
+                        }
+                        this.deleteFile(directory + filename);
+                        DirectoryWalker.removeEmptyParents(directory, filename);
+                        statuses.append(new File(directory + filename).exists() ? "error\n" : "ok\n");
+                    }
+                    this.invalidateListing();
+                    outputStream.writeFrame(COMMAND.BATCHSTATUS.name(), statuses.toString().getBytes(), "", 0L);
+                }
+
+                //3) When server A uploads a file, or the rest of a file whose upload was interrupted
+                if (upload) {
+                    Log.debug("Received new upload from server A");
+                    String filename = (String) response.get("filename");
+                    long size = (Long) response.get("size");
+                    if (!DirectoryWalker.isValidRelativePath(filename)) {
+                        Log.warn("Rejected invalid path {}", filename);
+                        FileTransfer.skip(channel, size);
+                    } else {
+                        long offset = 0;
+                        if (response.get("command").equals(COMMAND.FILERESUME.name())) {
+                            //the offset line is read (and counted) through the stream, the file data follows
+                            offset = FileTransfer.readResumeOffset(inputStream);
+                            size -= FileTransfer.offsetLineLength(offset);
+                            Log.info("Resuming upload of {} at {}", filename, offset);
+                            this.transfersResumed.increment();
+                            this.resumedBytes.add(offset);
+                        }
+                        //streamed from the connection into the file through a pooled buffer
+                        if (FileTransfer.receive(channel, size, directory, filename,
+                                (Long) response.get("timestamp"), offset)) {
+                            this.invalidateListing();
+                        }
+                        this.transferSize.record(size);
+                        this.receivedFileBytes.add(size);
+                        Log.debug("File successfully written to disk");
+                    }
                 }
 
                 //4) When server A request for a file to be deleted
                 if (response.getOrDefault("command", "").equals(COMMAND.FILEDELETE.name())) {
                     String filename = new String((byte[]) response.get("data"));
-                    System.out.println("Received request to delete a file " + filename);
-                    server.deleteFile(directoryServerB + filename);
-                    System.out.println("File successfully deleted");
+                    Log.debug("Received request to delete a file {}", filename);
+                    if (!DirectoryWalker.isValidRelativePath(filename)) {
+                        Log.warn("Rejected invalid path {}", filename);
+                    } else {
+                        this.deleteFile(directory + filename);
+                        DirectoryWalker.removeEmptyParents(directory, filename);
+                        this.invalidateListing();
+                        Log.debug("File successfully deleted");
+                    }
                 }
 
-                System.out.println(); //separate each cycle log
+                this.requestTime.recordSince(started);
             }
 
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error("Connection {} closed", connection, e);
         } finally {
-            System.out.println("Cleanup");
-
-
+            this.connections.decrementAndGet();
+            if (outputStream != null) {
+                this.listingSubscribers.remove(outputStream);
+            }
+            this.metrics.remove(connection + "_bytes_out");
+            this.metrics.remove(connection + "_bytes_in");
             try {
-                if (outputStream != null) {
-
-                    outputStream.close();
-                }
                 if (inputStream != null) {
                     inputStream.close();
                 }
                 if (socket != null) {
                     socket.close();
                 }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+
+        int portServerB = 2500; //this server port
+
+        //directory path for server B
+        String directoryServerB = "/home/murage/Desktop/directory_b/";
+
+        ServerB server = new ServerB();
+
+        //serve the metrics as text over HTTP: -metrics <port> (may be placed anywhere)
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        int metricsOption = arguments.indexOf("-metrics");
+        if (metricsOption >= 0) {
+            try {
+                server.metrics.startHttpServer(Integer.parseInt(arguments.get(metricsOption + 1)));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            arguments.remove(metricsOption + 1);
+            arguments.remove(metricsOption);
+        }
+        //files materialized from a local copy may be hard links: -hardlinks (may be placed anywhere)
+        boolean hardLinks = arguments.remove("-hardlinks");
+        args = arguments.toArray(new String[0]);
+        server.metrics.registerMBean("ServerB");
+
+        //optional overrides: ServerB <port> <directory>
+        if (args.length > 0) {
+            portServerB = Integer.parseInt(args[0]);
+        }
+        if (args.length > 1) {
+            directoryServerB = args[1];
+        }
+        final String serverDirectory = directoryServerB;
+        server.contentIndex = new ContentIndex(serverDirectory);
+        server.contentIndex.hardLinks = hardLinks;
+
+        ServerSocket serverSocket = null;
+        try {
+            server.watchDirectory(serverDirectory);
+
+            //accepted sockets have a channel for the frame writers
+            serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(portServerB)).socket();
+
+            Log.info("Server B started. Ready to accept connections");
+
+            //accept any number of server A connections, all sharing the cached directory listing
+            while (true) {
+                final Socket socket = serverSocket.accept();
+                Log.info("New client connected to server B with address: {}", socket.getRemoteSocketAddress());
+
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        server.connectionHandler(socket, serverDirectory);
+                    }
+                }).start();
+            }
+
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            Log.info("Cleanup");
+            try {
                 if (serverSocket != null) {
                     serverSocket.close();
                 }
@@ -0,0 +1,167 @@
+package com.mimidots.lab3;
+
+import java.io.DataInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Input stream of the connection of server A to server B, shared by the synchronization thread and a listener thread.
+ * <p>
+ * Between cycles nothing is read from server B, so the frames it sends on its own would wait for the next cycle.
+ * The listener reads them instead while the synchronization thread is idle: it blocks until a frame starts and
+ * calls onListingChanged for a LISTINGCHANGED (a HEARTBEAT is only read). Once a cycle starts, the first byte the
+ * listener gets is the start of a response: it is kept for the synchronization thread, which reads on from there.
+ * <p>
+ * A read of the synchronization thread waits while the listener is reading, so the two never read the same frame.
+ * File bodies are read from the channel, past this stream, but only after their header, so never while the
+ * listener holds a byte.
+ */
+public class ServerBInput extends FilterInputStream {
+    final Runnable onListingChanged;
+
+    boolean idle = false; //the synchronization thread is between cycles
+    boolean listening = false; //the listener is reading
+    int pushedBack = -1; //first byte of a frame the listener read for the synchronization thread
+    Thread listener = null;
+
+    /**
+     * @param in               stream of the connection
+     * @param onListingChanged run when server B reports a change of its directory between cycles
+     */
+    public ServerBInput(InputStream in, Runnable onListingChanged) {
+        super(in);
+        this.onListingChanged = onListingChanged;
+    }
+
+    /**
+     * Called by the synchronization thread: true while it waits for the next cycle, false before the cycle sends its
+     * first request
+     */
+    public synchronized void setIdle(boolean idle) {
+        this.idle = idle;
+        notifyAll();
+    }
+
+    //waits until the listener has left the stream, unless called by the listener
+    synchronized void acquire() throws IOException {
+        if (Thread.currentThread() == this.listener) {
+            return;
+        }
+        try {
+            while (this.listening) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while server B frames were read");
+        }
+    }
+
+    synchronized int takePushedBack() {
+        int b = this.pushedBack;
+        this.pushedBack = -1;
+        return b;
+    }
+
+    @Override
+    public int read() throws IOException {
+        acquire();
+        int b = takePushedBack();
+        return b >= 0 ? b : super.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        acquire();
+        int first = len > 0 ? takePushedBack() : -1;
+        if (first < 0) {
+            return super.read(b, off, len);
+        }
+        b[off] = (byte) first;
+        return 1;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        acquire();
+        if (n > 0 && takePushedBack() >= 0) {
+            return 1;
+        }
+        return super.skip(n);
+    }
+
+    @Override
+    public synchronized int available() throws IOException {
+        return (this.pushedBack >= 0 ? 1 : 0) + super.available();
+    }
+
+    /**
+     * Starts the listener on a daemon thread. It stops when the connection closes
+     */
+    public void listen(String connection) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    listenWhileIdle();
+                } catch (IOException e) {
+                    //the connection is gone, the synchronization thread finds out by itself
+                    Log.debug("Listening to {} stopped: {}", connection, e.toString());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "listener-" + connection);
+        this.listener = thread;
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void listenWhileIdle() throws IOException, InterruptedException {
+        FrameReader frames = new FrameReader(new DataInputStream(this));
+        try {
+            while (true) {
+                synchronized (this) {
+                    while (!this.idle) {
+                        wait();
+                    }
+                    this.listening = true;
+                }
+
+                //blocks until server B sends something
+                int b = super.read();
+                synchronized (this) {
+                    if (b < 0) {
+                        return;
+                    }
+                    this.pushedBack = b;
+                    if (!this.idle) {
+                        //a response to the cycle that just started
+                        this.listening = false;
+                        notifyAll();
+                        continue;
+                    }
+                }
+
+                //a frame server B sent on its own
+                frames.next();
+                frames.skipData();
+                if (frames.is(ServerA.COMMAND.LISTINGCHANGED.name())) {
+                    Log.debug("Server B reported a change of its directory");
+                    this.onListingChanged.run();
+                }
+                synchronized (this) {
+                    this.listening = false;
+                    notifyAll();
+                }
+            }
+        } finally {
+            synchronized (this) {
+                this.listening = false;
+                notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.mimidots.lab3;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Compares server A inventory, server B inventory and the last synchronized file list in a single ordered pass.
+ * <p>
+ * All three inputs must be sorted by the natural String order (case sensitive, the order of TreeMap and
+ * ConcurrentSkipListMap without a comparator). The engine walks them side by side like a merge and emits one action
+ * per filename, without lookups into the other inventories and without building intermediate maps.
+ * <p>
+ * Synchronization rules, per filename:
+ * 1) only on B and not synced before - DOWNLOAD
+ * 2) only on B and synced before (deleted on A) - DELETE_B
+ * 3) only on A and not synced before - UPLOAD
+ * 4) only on A and synced before (deleted on B) - DELETE_A
+ * 5) on both, B more recent - DOWNLOAD; A more recent - UPLOAD; same timestamp - SKIP
+ */
+public class SyncDiff {
+
+    static enum ACTION {
+        DOWNLOAD, //copy the file from B to A
+        UPLOAD, //copy the file from A to B
+        DELETE_A, //delete the file on A
+        DELETE_B, //delete the file on B
+        SKIP, //file is the same on both servers
+    }
+
+    /**
+     * Receives the actions in filename order
+     */
+    interface ActionHandler {
+        /**
+         * @param action   what to do with the file
+         * @param filename name of the file
+         * @param metaA    server A metadata, null if the file is not on A
+         * @param metaB    server B metadata, null if the file is not on B
+         * @param synced   true if the file was on the last synchronized file list
+         */
+        void handle(ACTION action, String filename, Long[] metaA, Long[] metaB, boolean synced) throws IOException;
+    }
+
+    static <T> T next(Iterator<T> iterator) {
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    /**
+     * Walks the inventories and passes every action to the handler
+     *
+     * @param inventoryA server A inventory, sorted
+     * @param inventoryB server B inventory, sorted
+     * @param synced     last synchronized file list, sorted. May be modified by the handler for the current filename
+     * @param handler    receives the actions
+     */
+    public static void diff(Iterator<Map.Entry<String, Long[]>> inventoryA, Iterator<Map.Entry<String, Long[]>> inventoryB,
+                            Iterator<? extends Map.Entry<String, Long[]>> synced, ActionHandler handler) throws IOException {
+        Map.Entry<String, Long[]> a = next(inventoryA);
+        Map.Entry<String, Long[]> b = next(inventoryB);
+        Map.Entry<String, Long[]> s = next(synced);
+
+        while (a != null || b != null) {
+            //smallest filename among the two inventories
+            String filename;
+            if (a == null) {
+                filename = b.getKey();
+            } else if (b == null) {
+                filename = a.getKey();
+            } else {
+                filename = a.getKey().compareTo(b.getKey()) <= 0 ? a.getKey() : b.getKey();
+            }
+
+            //skip synced files that are on neither server (already gone from both)
+            while (s != null && s.getKey().compareTo(filename) < 0) {
+                s = next(synced);
+            }
+            boolean isSynced = s != null && s.getKey().equals(filename);
+
+            Long[] metaA = a != null && a.getKey().equals(filename) ? a.getValue() : null;
+            Long[] metaB = b != null && b.getKey().equals(filename) ? b.getValue() : null;
+
+            if (metaA == null) {
+                handler.handle(isSynced ? ACTION.DELETE_B : ACTION.DOWNLOAD, filename, null, metaB, isSynced);
+            } else if (metaB == null) {
+                handler.handle(isSynced ? ACTION.DELETE_A : ACTION.UPLOAD, filename, metaA, null, isSynced);
+            } else if (metaB[1] > metaA[1]) {
+                handler.handle(ACTION.DOWNLOAD, filename, metaA, metaB, isSynced);
+            } else if (metaA[1] > metaB[1]) {
+                handler.handle(ACTION.UPLOAD, filename, metaA, metaB, isSynced);
+            } else {
+                handler.handle(ACTION.SKIP, filename, metaA, metaB, isSynced);
+            }
+
+            if (metaA != null) {
+                a = next(inventoryA);
+            }
+            if (metaB != null) {
+                b = next(inventoryB);
+            }
+        }
+    }
+
+    /**
+     * Wraps a handler for a comparison whose last synchronized file list is empty and is seeded with the server B
+     * inventory (B file list is the source of truth): every file on B counts as synced, files only on B are deleted.
+     * The files are put into the synchronized list as they pass, so B can be a listing still arriving.
+     *
+     * @param synced  last synchronized file list, empty
+     * @param handler receives the actions
+     */
+    static ActionHandler seededFromB(Map<String, Long[]> synced, ActionHandler handler) {
+        return (action, filename, metaA, metaB, isSynced) -> {
+            if (metaB == null) {
+                handler.handle(action, filename, metaA, null, isSynced);
+                return;
+            }
+            synced.put(filename, metaB);
+            handler.handle(metaA == null ? ACTION.DELETE_B : action, filename, metaA, metaB, true);
+        };
+    }
+
+    /**
+     * The comparison syncInventories did before this engine: two loops with lookups into the other maps,
+     * four intermediate maps and a case insensitive server B inventory. Kept for the benchmark only.
+     */
+    static int previousDiff(TreeMap<String, Long[]> inventoryA, TreeMap<String, Long[]> inventoryB,
+                            Map<String, Long[]> lastSyncedFileList) {
+        TreeMap<String, Long[]> filesFromAToDownload = new TreeMap<>();
+        TreeMap<String, Long[]> filesFromAToUpload = new TreeMap<>();
+        TreeMap<String, Long[]> filesOnAToDelete = new TreeMap<>();
+        TreeMap<String, Long[]> filesOnBToDelete = new TreeMap<>();
+
+        for (String filename : inventoryB.keySet()) {
+            if (!inventoryA.containsKey(filename) && !lastSyncedFileList.containsKey(filename)) {
+                filesFromAToDownload.put(filename, inventoryB.get(filename));
+            } else if (!inventoryA.containsKey(filename) && lastSyncedFileList.containsKey(filename)) {
+                filesOnBToDelete.put(filename, inventoryB.get(filename));
+            } else if (inventoryB.get(filename)[1] > inventoryA.get(filename)[1]) {
+                filesFromAToDownload.put(filename, inventoryB.get(filename));
+            }
+        }
+        for (String filename : inventoryA.keySet()) {
+            if (!inventoryB.containsKey(filename) && !lastSyncedFileList.containsKey(filename)) {
+                filesFromAToUpload.put(filename, inventoryA.get(filename));
+            } else if (!inventoryB.containsKey(filename) && lastSyncedFileList.containsKey(filename)) {
+                filesOnAToDelete.put(filename, inventoryA.get(filename));
+            } else if (inventoryA.get(filename)[1] > inventoryB.get(filename)[1]) {
+                filesFromAToUpload.put(filename, inventoryA.get(filename));
+            }
+        }
+        return filesFromAToDownload.size() + filesFromAToUpload.size() + filesOnAToDelete.size() + filesOnBToDelete.size();
+    }
+
+    /**
+     * Compares the previous comparison with this engine on generated inventories.
+     * About 1% of the files differ between the servers.
+     * Usage: SyncDiff [entries (default 1000000)]
+     */
+    public static void main(String[] args) throws IOException {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+
+        TreeMap<String, Long[]> inventoryA = new TreeMap<>();
+        TreeMap<String, Long[]> inventoryB = new TreeMap<>();
+        TreeMap<String, Long[]> inventoryBInsensitive = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        ConcurrentSkipListMap<String, Long[]> synced = new ConcurrentSkipListMap<>();
+        ConcurrentHashMap<String, Long[]> syncedHash = new ConcurrentHashMap<>();
+
+        for (int i = 0; i < entries; i++) {
+            String filename = "dir-" + (i % 1000) + "/file-" + i + ".txt";
+            Long[] meta = new Long[]{1024L, 1_600_000_000_000L, 0L};
+            int kind = i % 100;
+            if (kind != 0) { //only on B
+                inventoryA.put(filename, kind == 1 ? new Long[]{1024L, 1_600_000_000_001L, 0L} : meta);
+            }
+            if (kind != 2) { //only on A
+                inventoryB.put(filename, meta);
+                inventoryBInsensitive.put(filename, meta);
+            }
+            if (kind != 3) { //new on both
+                synced.put(filename, meta);
+                syncedHash.put(filename, meta);
+            }
+        }
+
+        for (int round = 1; round <= 5; round++) {
+            long start = System.nanoTime();
+            int previousActions = previousDiff(inventoryA, inventoryBInsensitive, syncedHash);
+            long previousTime = System.nanoTime() - start;
+
+            int[] actions = new int[1];
+            start = System.nanoTime();
+            diff(inventoryA.entrySet().iterator(), inventoryB.entrySet().iterator(), synced.entrySet().iterator(),
+                    (action, filename, metaA, metaB, isSynced) -> {
+                        if (action != ACTION.SKIP) {
+                            actions[0]++;
+                        }
+                    });
+            long engineTime = System.nanoTime() - start;
+
+            System.out.println("Round " + round + ": previous " + previousTime / 1_000_000 + " ms (" + previousActions +
+                    " actions), engine " + engineTime / 1_000_000 + " ms (" + actions[0] + " actions)");
+        }
+    }
+}
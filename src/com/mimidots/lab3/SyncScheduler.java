@@ -0,0 +1,76 @@
+package com.mimidots.lab3;
+
+/**
+ * Decides when the next synchronization cycle runs.
+ * <p>
+ * While cycles find nothing to do the interval doubles, up to MAX_INTERVAL. A cycle that found changes halves it,
+ * down to MIN_INTERVAL, since more changes are likely to follow. The interval never drops below
+ * DURATION_FACTOR times the duration of the last cycle, so a slow cycle (large directory, large files) does not
+ * run back to back with the next one.
+ * <p>
+ * trigger() starts the next cycle right away, e.g. when the directory watcher reports a change, server B reports a
+ * change of its directory (LISTINGCHANGED) or a client unlocks a file. Triggers arriving during a cycle are merged
+ * into a single cycle after it. Changes on either side start a cycle on their own, the interval only bounds how long
+ * a change no watcher reported goes unnoticed.
+ */
+public class SyncScheduler {
+    static final long MIN_INTERVAL = 250; //milliseconds
+    static final long MAX_INTERVAL = 15_000;
+    static final long INITIAL_INTERVAL = 1_000;
+    static final int DURATION_FACTOR = 2;
+
+    long interval = INITIAL_INTERVAL;
+    long nextCycle = 0; //System.currentTimeMillis of the next cycle, 0 - right away
+    boolean triggered = false;
+
+    /**
+     * Runs the next cycle right away
+     */
+    public synchronized void trigger() {
+        triggered = true;
+        notifyAll();
+    }
+
+    /**
+     * Blocks until the next cycle is due or triggered
+     */
+    public synchronized void awaitNextCycle() throws InterruptedException {
+        long now;
+        while (!triggered && (now = System.currentTimeMillis()) < nextCycle) {
+            wait(nextCycle - now);
+        }
+        triggered = false;
+    }
+
+    /**
+     * Blocks until trigger() is called or the time is up, e.g. while server B is unreachable and no cycle can run.
+     * The trigger is consumed
+     */
+    public synchronized void awaitTrigger(long millis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+        long now;
+        while (!triggered && (now = System.currentTimeMillis()) < deadline) {
+            wait(deadline - now);
+        }
+        triggered = false;
+    }
+
+    /**
+     * Adapts the interval to the last cycle
+     *
+     * @param durationNanos how long the cycle took
+     * @param changes       number of files the cycle transferred or deleted
+     * @return the interval until the next cycle, in milliseconds
+     */
+    public synchronized long cycleCompleted(long durationNanos, int changes) {
+        if (changes > 0) {
+            interval = Math.max(MIN_INTERVAL, interval / 2);
+        } else {
+            interval = Math.min(MAX_INTERVAL, interval * 2);
+        }
+        long floor = DURATION_FACTOR * durationNanos / 1_000_000;
+        long wait = Math.max(interval, Math.min(floor, MAX_INTERVAL));
+        nextCycle = System.currentTimeMillis() + wait;
+        return wait;
+    }
+}
@@ -0,0 +1,160 @@
+package com.mimidots.lab3;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Transfers found by the synchronization cycles, run by priority class instead of in filename order, so a large file
+ * that sorts early does not hold back the small edits behind it.
+ * <p>
+ * Classes, highest first: LOCKED (files a client has locked, it gets the changes when it unlocks), SMALL (up to
+ * SMALL_SIZE, most interactive edits), MEDIUM and BULK (from BULK_SIZE). Within a class the transfer queued first
+ * runs first.
+ * <p>
+ * A class waiting to be served ages: every AGING_NANOS since it last had a transfer run (or since its oldest
+ * transfer was queued, if that is later) count as one class higher. A lower class therefore gets a turn at least
+ * every rank * AGING_NANOS however much work the higher classes have, and bulk transfers keep making progress.
+ * <p>
+ * A cycle that runs out of budget leaves the rest queued. The next cycle finds those files again and queues them anew
+ * (requeue(), then add()), with the time they were first queued, so they keep their age; the ones it does not find
+ * any more (synchronized or deleted meanwhile) are dropped.
+ * <p>
+ * Only used by the synchronization thread.
+ */
+public class TransferQueue {
+    static enum CLASS {
+        LOCKED, SMALL, MEDIUM, BULK
+    }
+
+    static final long SMALL_SIZE = 1024 * 1024;
+    static final long BULK_SIZE = 64 * SMALL_SIZE;
+    static final long AGING_NANOS = 5_000_000_000L;
+
+    //[transfer, filename, System.nanoTime it was first queued, sequence] per class, oldest first
+    final PriorityQueue<Object[]>[] queues;
+    //System.nanoTime a transfer of the class last ran
+    final long[] lastServed;
+    final Metrics.Histogram[] waitTime;
+    //time the transfers left by the last cycle were first queued, by filename
+    final Map<String, Long> carried = new HashMap<>();
+    long sequence = 0;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TransferQueue(Metrics metrics) {
+        int classes = CLASS.values().length;
+        queues = new PriorityQueue[classes];
+        lastServed = new long[classes];
+        waitTime = new Metrics.Histogram[classes];
+        Comparator<Object[]> oldestFirst = Comparator.comparing((Object[] queued) -> (Long) queued[2])
+                .thenComparing(queued -> (Long) queued[3]);
+        for (CLASS transferClass : CLASS.values()) {
+            queues[transferClass.ordinal()] = new PriorityQueue<>(oldestFirst);
+            waitTime[transferClass.ordinal()] = metrics.histogram("queue_wait_ns_" + transferClass.name().toLowerCase());
+        }
+        metrics.gauge("transfers_queued", this::size);
+    }
+
+    static CLASS classOf(long size, boolean locked) {
+        if (locked) {
+            return CLASS.LOCKED;
+        } else if (size <= SMALL_SIZE) {
+            return CLASS.SMALL;
+        }
+        return size < BULK_SIZE ? CLASS.MEDIUM : CLASS.BULK;
+    }
+
+    /**
+     * @param filename file transferred, a transfer of it left by the last cycle keeps its age
+     * @param transfer transfer to run, kept as it is until polled
+     * @param size     bytes to transfer
+     * @param locked   true if the file is locked by a client
+     */
+    public void add(String filename, Object[] transfer, long size, boolean locked) {
+        Long queuedAt = carried.remove(filename);
+        queues[classOf(size, locked).ordinal()].add(new Object[]{transfer, filename,
+                queuedAt == null ? System.nanoTime() : queuedAt, sequence++});
+    }
+
+    /**
+     * Empties the queue before a cycle queues what is left to do, remembering since when the transfers left by the
+     * last cycle have been waiting
+     */
+    public void requeue() {
+        carried.clear();
+        for (PriorityQueue<Object[]> queue : queues) {
+            for (Object[] queued : queue) {
+                carried.put((String) queued[1], (Long) queued[2]);
+            }
+            queue.clear();
+        }
+    }
+
+    /**
+     * @return the next transfer to run, null if there is none
+     */
+    public Object[] poll() {
+        long now = System.nanoTime();
+        int next = -1;
+        long nextRank = Long.MAX_VALUE;
+        for (int i = 0; i < queues.length; i++) {
+            Object[] oldest = queues[i].peek();
+            if (oldest == null) {
+                continue;
+            }
+            //rank in nanoseconds, lowest first, ties to the higher class
+            long waitingSince = Math.max(lastServed[i], (Long) oldest[2]);
+            long rank = i * AGING_NANOS - (now - waitingSince);
+            if (rank < nextRank) {
+                next = i;
+                nextRank = rank;
+            }
+        }
+        if (next < 0) {
+            return null;
+        }
+
+        Object[] queued = queues[next].poll();
+        lastServed[next] = now;
+        waitTime[next].record(now - (Long) queued[2]);
+        return (Object[]) queued[0];
+    }
+
+    /**
+     * @return the transfers not run yet
+     */
+    public List<Object[]> pending() {
+        List<Object[]> pending = new ArrayList<>();
+        for (PriorityQueue<Object[]> queue : queues) {
+            for (Object[] queued : queue) {
+                pending.add((Object[]) queued[0]);
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Drops every queued transfer, e.g. when the connection is lost
+     */
+    public void clear() {
+        carried.clear();
+        for (PriorityQueue<Object[]> queue : queues) {
+            queue.clear();
+        }
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public long size() {
+        long size = 0;
+        for (PriorityQueue<Object[]> queue : queues) {
+            size += queue.size();
+        }
+        return size;
+    }
+}
@@ -0,0 +1,9 @@
+#!/bin/sh
+# Compiles lab3 and runs the load harness on this machine.
+# Usage: ./loadtest.sh [-clients 10] [-rate 5] [-seconds 60] [-filesize 4096] [-lockprobability 0.2]
+set -e
+SOURCES="$(cd "$(dirname "$0")/../../.." && pwd)"
+CLASSES="$(mktemp -d)"
+trap 'rm -rf "$CLASSES"' EXIT
+javac -d "$CLASSES" "$SOURCES"/com/mimidots/lab3/*.java
+java -cp "$CLASSES" com.mimidots.lab3.LoadHarness "$@"